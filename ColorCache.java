@@ -0,0 +1,23 @@
+import java.awt.*;
+
+/**
+ * The Color for an rgb value, reusing the last one made for it, since a sketch only ever uses a few colors
+ * and a new Color per message is garbage. Not thread-safe: one per thread that turns messages into shapes.
+ *
+ * @co-author aral cay
+ */
+public class ColorCache {
+	private static final int SIZE = 256;		// direct-mapped; a miss just replaces the entry
+	private final Color[] colors = new Color[SIZE];
+
+	public Color get(int rgb) {
+		int i = (rgb ^ (rgb >>> 8) ^ (rgb >>> 16)) & (SIZE - 1);
+		Color color = colors[i];
+		// new Color(rgb) is opaque, so that is what getRGB() gives back
+		if (color == null || color.getRGB() != (rgb | 0xff000000)) {
+			color = new Color(rgb);
+			colors[i] = color;
+		}
+		return color;
+	}
+}
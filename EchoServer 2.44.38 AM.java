@@ -4,6 +4,8 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * EchoServer is a simple server which accepts a connection and 
@@ -18,9 +20,15 @@ import java.net.Socket;
 public class EchoServer {
 
     private ServerSocket listen;  // for accepting connections
+    private boolean virtualThreads;  // run communicators on virtual rather than platform threads
     
     public EchoServer(ServerSocket listen) {
+        this(listen, false);
+    }
+
+    public EchoServer(ServerSocket listen, boolean virtualThreads) {
         this.listen = listen;
+        this.virtualThreads = virtualThreads;
     }
     
     private class EchoServerCommunicator extends Thread {
@@ -66,16 +74,26 @@ public class EchoServer {
     ///////////////////////////////////////////////////////////////////////
     
     public void getConnections() throws IOException {
+        ExecutorService executor = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : null;
         while (true) {
             EchoServerCommunicator comm = new EchoServerCommunicator(listen.accept());
-            comm.setDaemon(true);
-            comm.start();
+            if (executor != null) {
+                executor.execute(comm);
+            }
+            else {
+                comm.setDaemon(true);
+                comm.start();
+            }
         }
     }
     
+    /**
+     * Pass "virtual" to serve each editor on a virtual thread instead of a platform thread
+     */
     public static void main(String[] args) throws Exception {
         System.out.println("Starting up the EchoServer...");
-        new EchoServer(new ServerSocket(4242)).getConnections();        
+        boolean virtual = args.length > 0 && args[0].equals("virtual");
+        new EchoServer(new ServerSocket(4242), virtual).getConnections();        
     }
         
 }
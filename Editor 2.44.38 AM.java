@@ -15,9 +15,13 @@ import java.awt.event.MouseEvent;
  */
 
 public class Editor extends JFrame {
-	private static String serverIP = "localhost";			// IP address of sketch server
+	private static String serverIP = "localhost";			// IP address of sketch server, with ":port" if not 4242 ("server host" arguments)
 	// "localhost" for your own machine;
 	// or ask a friend for their IP address
+	private static boolean binary = false;					// ask the server for binary frames ("binary" argument)
+	private static int moveInterval = 16;					// ms between move messages while dragging (numeric argument)
+	private static double simplify = 1.0;					// pixels a freehand stroke may be straightened by ("simplify px"; 0 for every point)
+	private static String room = null;						// sketch room to join ("room name" arguments; default: the server's)
 
 	private static final int width = 800, height = 800;		// canvas size
 
@@ -33,8 +37,14 @@ public class Editor extends JFrame {
 	// these are remnants of my implementation; take them as possible suggestions or ignore them
 	private Shape curr = null;					// current shape (if any) being drawn
 	private Sketch sketch;						// holds and handles all the completed objects
-	private int movingId = -1;					// current shape id (if any; else -1) being moved
+	private JComponent canvas;					// what the sketch is drawn on (repainted only where it changes)
+	private String movingId = null;				// current shape id (if any; else null) being moved
+	private int movedX = 0, movedY = 0;			// how far it has been dragged since the last move sent
+	private Timer moveTimer;					// sends the drag (or freehand stroke) so far, once per moveInterval
+	private long strokeKey = 0;					// our number for the freehand stroke being drawn, to the server
+	private StrokeSimplifier strokePoints;		// which of its points to send, and those not yet sent
 	private Point drawFrom = null;				// where the drawing started
+	private Point drawnTo = null;				// where it has been dragged to
 	private Point moveFrom = null;				// where object is as it's being dragged
 
 
@@ -44,14 +54,21 @@ public class Editor extends JFrame {
 	public Editor() {
 		super("Graphical Editor");
 
-		sketch = new Sketch();
+		sketch = new Sketch(true);  // with a spatial index, so clicks don't test every shape
 
 		// Connect to server
-		comm = new EditorCommunicator(serverIP, this);
+		comm = new EditorCommunicator(serverIP, this, binary, room);
 		comm.start();
 
+		// While dragging, the deltas are summed and sent at most once per interval, not on every mouse event;
+		// likewise a freehand stroke's new points
+		moveTimer = new Timer(moveInterval, e -> {
+			sendMove();
+			sendStroke();
+		});
+
 		// Helpers to create the canvas and GUI (buttons, etc.)
-		JComponent canvas = setupCanvas();
+		canvas = setupCanvas();
 		JComponent gui = setupGUI();
 
 		// Put the buttons and canvas together into the window
@@ -67,8 +84,24 @@ public class Editor extends JFrame {
 		setVisible(true);
 	}
 
-	public void delete(){
-		this.curr = null;
+	/**
+	 * Repaints just the part of the canvas the sketch's changes since the last call have touched (if any),
+	 * rather than every shape
+	 */
+	public void repaintChanges() {
+		java.awt.Rectangle dirty = sketch.takeDirty();
+		if (dirty != null) canvas.repaint(dirty.intersection(new java.awt.Rectangle(0, 0, canvas.getWidth(), canvas.getHeight())));
+	}
+
+	// repaints the box with corners (x1,y1) and (x2,y2), either way round, and a pixel beyond
+	private void repaintBox(int x1, int y1, int x2, int y2) {
+		canvas.repaint(Math.min(x1, x2) - 1, Math.min(y1, y2) - 1, Math.abs(x2 - x1) + 3, Math.abs(y2 - y1) + 3);
+	}
+
+	// repaints where the shape being drawn is
+	private void repaintCurr() {
+		if (curr instanceof Polyline stroke) canvas.repaint(stroke.getBounds());
+		else if (curr != null && drawnTo != null) repaintBox(drawFrom.x, drawFrom.y, drawnTo.x, drawnTo.y);
 	}
 
 	/**
@@ -173,9 +206,7 @@ public class Editor extends JFrame {
 	 */
 	public void drawSketch(Graphics g) {
 		// TODO: YOUR CODE HERE
-		for (Shape shape: sketch.getShapeList()){  //for each shape in the shape list
-			shape.draw(g);  //draw the shape, graphics g
-		}
+		sketch.snapshot().draw(g);  //every shape, as of now (the communicator may be changing the sketch)
 		if (curr != null){  //if the current is not null
 			curr.draw(g); //draw g(graphics)
 		}
@@ -194,37 +225,39 @@ public class Editor extends JFrame {
 		// TODO: YOUR CODE HERE
 		if (mode == Editor.Mode.DRAW){ // if in the draw mode
 			drawFrom = p; //in draw form p
+			drawnTo = p;
 			moveFrom = p;
             switch (shapeType) {  // java suggested method instead of using if statements
                 case "ellipse" -> curr = new Ellipse(drawFrom.x, drawFrom.y, color); //ellipse case
                 case "rectangle" -> curr = new Rectangle(drawFrom.x, drawFrom.y, color);  //rectangle case
-                case "freehand" -> curr = new Polyline(drawFrom, color);  //freehand polyline case
+                case "freehand" -> {  //freehand polyline case: everyone sees it as it is drawn
+                    curr = new Polyline(drawFrom, color);
+                    strokeKey++;
+                    strokePoints = new StrokeSimplifier(p.x, p.y, simplify);
+                    comm.send("stroke " + strokeKey + " " + p.x + " " + p.y + " " + color.getRGB());
+                    moveTimer.start();
+                }
                 case "segment" -> curr = new Segment(drawFrom.x, drawFrom.y, color);  //segment case
             }
 		}
 		else if (mode == Editor.Mode.MOVE){  // if in the move mode
-			for (Shape shape: this.sketch.getShapeList()){  // for each shape
-				if (shape.contains(p.x, p.y)){  //if contains point
-					this.curr = shape;  // select as current shape
-					moveFrom = p;  //move
-					handleDrag(p);  //handle drag
-				}
+			Shape shape = this.sketch.shapeAt(p.x, p.y);  // top-most shape under the point
+			if (shape != null && shape.getID() != null){
+				movingId = shape.getID();  // select it by id (the sketch replaces the shape object as it changes)
+				moveFrom = p;  //move
+				moveTimer.start();
 			}
 		}
 		else if (mode == Editor.Mode.RECOLOR){  // if in the recolor mode
-			for (Shape shape: this.sketch.getShapeList()){  //for each shape in the shape list
-				if (shape.contains(p.x, p.y)){
-					if (shape.getID() != null){  // get id is not null
-						comm.send("recolor " + shape.getID() + " " + this.color.getRGB());  //recolor
-					}
-				}
+			Shape shape = this.sketch.shapeAt(p.x, p.y);  // top-most shape under the point
+			if (shape != null && shape.getID() != null){  // get id is not null
+				comm.send("recolor " + shape.getID() + " " + this.color.getRGB());  //recolor
 			}
 		}
 		else if (mode ==  Editor.Mode.DELETE){  // if in the delete mode
-			for (Shape shape: this.sketch.getShapeList()){  // for each shape in the list
-				if (shape.getID() != null){
-					comm.send("delete " + shape.getID());  // delete and communicate message
-				}
+			Shape shape = this.sketch.shapeAt(p.x, p.y);  // top-most shape under the point
+			if (shape != null && shape.getID() != null){
+				comm.send("delete " + shape.getID());  // delete and communicate message
 			}
 		}
 	}
@@ -244,7 +277,8 @@ public class Editor extends JFrame {
                         moveFrom = new Point(drawFrom.x + (p.x - drawFrom.x) / 2, drawFrom.y + (p.y - drawFrom.y) / 2);
                     }
                     case "freehand" -> {  //poly case
-                        ((Polyline) curr).setEnd(p);
+                        ((Polyline) curr).setEnd(p);  // drawn here as is, sent thinned out
+                        strokePoints.add(p.x, p.y);
                         moveFrom = new Point(drawFrom.x + (p.x - drawFrom.x) / 2, drawFrom.y + (p.y - drawFrom.y) / 2);
                     }
                     case "rectangle" -> {  //rectangle case
@@ -257,16 +291,20 @@ public class Editor extends JFrame {
                         moveFrom = new Point((p.x - drawFrom.x) / 2, (p.y - drawFrom.y) / 2);
                     }
                 }
-				repaint();  //repaints at the end
+				// repaints just where the shape was and now is (of a stroke, the new bit)
+				if (curr instanceof Polyline) repaintBox(drawnTo.x, drawnTo.y, p.x, p.y);
+				else {
+					repaintCurr();
+					repaintBox(drawFrom.x, drawFrom.y, p.x, p.y);
+				}
+				drawnTo = p;
 			}
 		}
 		else if (mode == Editor.Mode.MOVE){  //move mode
-			if (curr != null && moveFrom != null && curr.contains(p.x, p.y)){  //if not empty and contains point p
-				if (curr.getID() != null){  // if id not null
-					comm.send("move " + curr.getID() + " " + (p.x - moveFrom.x) + " " + (p.y-moveFrom.y));
-				}  //moves and sends message, after that repaints
+			if (movingId != null && moveFrom != null){  //if dragging a shape
+				movedX += p.x - moveFrom.x;  //adds to the move to send, the timer sends it
+				movedY += p.y - moveFrom.y;
 				moveFrom = p;
-				repaint();
 			}
 		}
 	}
@@ -279,13 +317,55 @@ public class Editor extends JFrame {
 	private void handleRelease() {  //handles release
 		// TODO: YOUR CODE HERE
 		if (mode == Mode.DRAW){  // if in the draw mode
-			comm.send("add " + curr.toString());  //sends toString
+			if (strokePoints != null){  // the rest of the stroke, and that it is done (whatever became of curr)
+				moveTimer.stop();
+				strokePoints.finish();
+				sendStroke();
+				comm.send("finish " + strokeKey);
+				strokePoints = null;
+			}
+			else if (curr != null){
+				comm.send("add " + curr.toString());  //sends toString
+			}
+			repaintCurr();  // the sketch's copy, as the server has it, takes its place
 			curr = null;  //current is handled, and null
 		}
+		else if (mode == Mode.MOVE && movingId != null){  // if dragging, send the rest so it ends up exactly there
+			moveTimer.stop();
+			sendMove();
+			movingId = null;
+		}
+	}
+
+	/**
+	 * Sends the stroke's points kept since the last append, if any, as one append
+	 */
+	private void sendStroke() {
+		StringBuilder append = new StringBuilder("append ").append(strokeKey);
+		if (strokePoints != null && strokePoints.takeDeltas(append)){
+			comm.send(append.toString());
+		}
+	}
+
+	/**
+	 * Sends the drag since the last move sent, if any, as one move
+	 */
+	private void sendMove() {
+		if (movingId != null && (movedX != 0 || movedY != 0)){
+			comm.send("move " + movingId + " " + movedX + " " + movedY);
+			movedX = movedY = 0;
+		}
 	}
 
 
 	public static void main(String[] args) {
+		for (int i = 0; i < args.length; i++){
+			if (args[i].equals("binary")) binary = true;
+			else if (args[i].equals("room")) room = args[++i];
+			else if (args[i].equals("server")) serverIP = args[++i];
+			else if (args[i].equals("simplify")) simplify = Double.parseDouble(args[++i]);
+			else moveInterval = Integer.parseInt(args[i]);
+		}
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				new Editor();
@@ -1,7 +1,8 @@
 import java.awt.*;
 import java.io.*;
 import java.net.Socket;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.util.*;
 
 /**
  * Handles communication to/from the server for the editor
@@ -13,209 +14,290 @@ import java.util.Iterator;
  * @co-author aral cay
  */
 public class EditorCommunicator extends Thread {
+	private String serverIP;		// where the server is
+	private Socket sock;			// current connection (null while reconnecting)
 	private PrintWriter out;		// to server
-	private BufferedReader in;		// from server
+	private OutputStream rawOut;	// to server, for binary frames
+	private InputStream in;			// from server
 	protected Editor editor;		// handling communication for
+	private boolean wantBinary;		// switch to binary frames if the server offers them
+	private String room;			// the sketch room to join (null: the server's default one)
+	private boolean framesOut = false;	// switched: sending frames
+	private boolean framesIn = false;	// the server has switched to frames (reader thread only)
+	private SketchCommand cmd = new SketchCommand();	// each message from the server, parsed (reader thread only)
+	private ColorCache colors = new ColorCache();		// so a recolor doesn't make a new Color each time
+
+	// Picking up where we left off after the connection drops
+	private long clientID = new Random().nextLong(1, Long.MAX_VALUE);	// who we are, to the server, across connections
+	private long runID = 0;			// the server run our operation count is in (0 until we have joined)
+	private long seq = 0;			// the number of the last operation we have applied
+	private boolean inSnapshot = false;		// the adds coming in are the state of the world, not operations
+	private long nextOpID = 0;		// our number for the next operation we send
+	private Map<Long, String> unacked = new LinkedHashMap<Long, String>();	// sent (or waiting to be) and not yet applied, in order
 
 	/**
-	 * Establishes connection and in/out pair
+	 * Sets up the connection, which is made (and made again, whenever it drops) by run()
 	 */
 	public EditorCommunicator(String serverIP, Editor editor) {
+		this(serverIP, editor, false);
+	}
+
+	/**
+	 * Sets up the connection; binary: use SketchBinaryProtocol frames if the server supports them
+	 */
+	public EditorCommunicator(String serverIP, Editor editor, boolean binary) {
+		this(serverIP, editor, binary, null);
+	}
+
+	/**
+	 * Sets up the connection to the named room (letters, digits, '-' and '_'; null for the default one)
+	 */
+	public EditorCommunicator(String serverIP, Editor editor, boolean binary, String room) {
+		this.serverIP = serverIP;
 		this.editor = editor;
+		this.wantBinary = binary;
+		this.room = room;
+	}
+
+	/**
+	 * Sends message to the server, numbered, so that if the connection drops before the server has applied it,
+	 * it can be sent again without being applied twice
+	 */
+	public synchronized void send(String msg) {
+		String op = "op " + (++nextOpID) + " " + msg;
+		unacked.put(nextOpID, op);
+		write(op);
+	}
+
+	/**
+	 * Writes a message on the current connection, if there is one
+	 */
+	private synchronized void write(String msg) {
+		if (out == null) return;  // it goes when we reconnect
+		if (framesOut) {
+			try {
+				ByteBuffer frame = SketchBinaryProtocol.encode(msg);
+				byte[] bytes = new byte[frame.remaining()];
+				frame.get(bytes);
+				rawOut.write(bytes);
+			}
+			catch (IOException e) {
+				// the reader finds out too, and reconnects
+			}
+		}
+		else {
+			out.println(msg);
+		}
+	}
+
+	/**
+	 * Asks the server for binary frames; everything sent after the request is a frame
+	 */
+	private synchronized void requestBinary() {
+		out.println("binary");
+		framesOut = true;
+	}
+
+	/**
+	 * Connects, then says who we are and where we got to, and sends again whatever the server hasn't applied
+	 */
+	private synchronized void connect() throws IOException {
 		System.out.println("connecting to " + serverIP + "...");
+		String[] host = serverIP.split(":");  // "host" or "host:port"
+		sock = new Socket(host[0], host.length > 1 ? Integer.parseInt(host[1]) : 4242);
+		rawOut = sock.getOutputStream();
+		out = new PrintWriter(rawOut, true);
+		in = new BufferedInputStream(sock.getInputStream());
+		framesOut = false;
+		System.out.println("...connected");
+
+		String where = room == null ? "" : " " + room;
+		if (runID == 0) out.println("sync " + clientID + where);
+		else out.println("resume " + clientID + " " + runID + " " + seq + where);
+		for (String op: unacked.values()) out.println(op);
+	}
 
+	private synchronized void disconnect() {
+		out = null;
 		try {
-			Socket sock = new Socket(serverIP, 4242);
-			out = new PrintWriter(sock.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			System.out.println("...connected");
+			if (sock != null) sock.close();
 		}
-
 		catch (IOException e) {
-			System.err.println("couldn't connect");
-			System.exit(-1);
+			// going anyway
 		}
+		sock = null;
 	}
 
 	/**
-	 * Sends message to the server
+	 * Keeps listening for and handling (your code) messages from the server, reconnecting when the connection drops
 	 */
-	public void send(String msg) {
-		out.println(msg);
+	public void run() {
+		int backoff = 250;  // ms before trying again, doubling up to a few seconds while the server stays away
+		while (true) {
+			try {
+				connect();
+				backoff = 250;
+				listen();
+			}
+			catch (IOException e) {
+				System.err.println("lost connection to server: " + e.getMessage());
+			}
+			disconnect();
+			try {
+				Thread.sleep(backoff);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			backoff = Math.min(backoff * 2, 4000);
+		}
 	}
 
 	/**
-	 * Keeps listening for and handling (your code) messages from the server
+	 * Handles messages from the server until the connection drops
 	 */
-	public void run() {
-		try {
-			// handle messages
-			// TODO: YOUR CODE HERE
-			String message;  //creates the string message
-			while ((message = in.readLine()) != null) {
-				System.out.println("got msg "+message);
-				handleMsg(message); //handles the message
-				editor.repaint();  //repaints
+	private void listen() throws IOException {
+		// handle messages
+		// TODO: YOUR CODE HERE
+		ByteBuffer message = ByteBuffer.allocate(256);  // one buffer, reused for every message
+		framesIn = false;
+		while ((message = framesIn ? SketchBinaryProtocol.readFrame(in, message)
+				: SketchBinaryProtocol.readLine(in, message)) != null) {
+			if (framesIn) SketchBinaryProtocol.decode(message, cmd);
+			else cmd.parse(message);
+
+			switch (cmd.op) {
+				case ADD, MOVE, RECOLOR, DELETE, STROKE, APPEND, FINISH -> {  // a change to the sketch
+					if (!inSnapshot) seq++;  // one more operation
+					handleMsg(cmd); //handles the message
+					editor.repaintChanges();  //repaints just what it changed
+				}
+				case ACK -> acknowledged(cmd.opId);  // the server has applied our operations up to this one
+				case BEGIN -> {  // the shapes already there follow, as adds
+					System.out.println("getting sketch of " + cmd.id + " shapes");
+					editor.getSketch().clear();  // whatever we had is out of date
+					seq = cmd.seq;
+					inSnapshot = true;
+				}
+				case END -> {
+					inSnapshot = false;
+					editor.repaintChanges();  //everything, as the sketch was cleared
+				}
+				default -> other(cmd.line);
 			}
 		}
-		catch (IOException e) {
-			e.printStackTrace();  // if not found, error is caught here
+		throw new EOFException("server closed the connection");
+	}
+
+	//the rest of what the server says
+	private void other(String line){
+		if (line == null) return;  // a message we parsed but have no use for
+		if (line.startsWith("hello ")){  // the server's greeting: protocol version and run
+			String[] parts = line.split(" ");
+			runID = Long.parseLong(parts[2]);
+			if (wantBinary && Integer.parseInt(parts[1]) >= 2) requestBinary();
+		}
+		else if (line.equals("binary ok")){  // frames from here on
+			framesIn = true;
+		}
+		else if (line.startsWith("resume ok ")){  // just the operations we missed follow
+			System.out.println("resuming after operation " + seq);
 		}
-		finally {
-			System.out.println("server executed");  //finally message is ran at the end
+		else {
+			System.out.println("got msg "+line);
 		}
 	}
 
+	//forgets the operations the server has applied, so they aren't sent again
+	private synchronized void acknowledged(long opID){
+		unacked.keySet().removeIf(id -> id <= opID);
+	}
+
 	public void handleMsg(String msg){  //handles the message
 		if (msg == null){
 			return;  // if null, returns
 		}
 
-		String[] parts = msg.split(" ");  // parts splits the string
-		if (parts.length < 2){  // if len<2 invalid length
+		SketchCommand parsed = new SketchCommand();  // not the reader's, which may be in use
+		parsed.parse(msg);
+		if (parsed.op == SketchCommand.Op.INVALID){
 			System.err.println("Invalid message from server");
+			return;
 		}
+		handleMsg(parsed);
+	}
 
-		if (parts[0].equals("add")){  // all cases are laid out, valid cases are: add, recolor, move, delete, sketch
-			handleAdd(msg);
-		}
-		else if (parts[0].equals("move")){
-			handleMove(msg);
-		}
-		else if (parts[0].equals("recolor")){
-			handleRecolor(msg);
+	public void handleMsg(SketchCommand msg){  //handles a parsed message
+		//switch cases suggested by Java; valid cases are: add, recolor, move, delete, and a stroke's parts
+		switch (msg.op) {
+			case ADD -> handleAdd(msg);
+			case MOVE -> handleMove(msg);
+			case RECOLOR -> handleRecolor(msg);
+			case DELETE -> handleDelete(msg);
+			case STROKE -> handleStroke(msg);
+			case APPEND -> handleAppend(msg);
+			case FINISH -> handleFinish(msg);
+			default -> { }
 		}
+	}
 
-		else if (parts[0].equals("sketch")){
-			initializeSketch(msg);
-		}
-		else if (parts[0].equals("delete")){
-			handleDelete(msg);
-		}
+	//a freehand stroke someone has started, so far just its first point
+	synchronized public void handleStroke(SketchCommand msg){
+		Polyline stroke = new Polyline(new Point(msg.x1, msg.y1), colors.get(msg.rgb));
+		stroke.setID(Long.toString(msg.id));
+		editor.getSketch().addShape(msg.id, stroke);
+	}
 
+	//the points drawn since, on the end of the stroke
+	synchronized public void handleAppend(SketchCommand msg){
+		editor.getSketch().extendStroke(msg.id, msg.points, msg.count);
+	}
+
+	//the stroke is done
+	synchronized public void handleFinish(SketchCommand msg){
+		editor.getSketch().finishStroke(msg.id);
 	}
 
 
-	synchronized public void handleAdd(String msg){  // handles add
-		String[] parts = msg.split(" ");    // splits message at spaces
-		if (parts.length < 8){  // if parts length is less than 8, returns
+	synchronized public void handleAdd(SketchCommand msg){  // handles add
+		if (msg.id == 0){  // the server always says which id it gave the shape
 			return;
 		}
 
+		String id = Long.toString(msg.id);
+		Color color = colors.get(msg.rgb);
 		//Java suggested switch cases
-		Shape newShape = switch (parts[1]) {
-			//for ellipse
-            case "ellipse" -> new Ellipse(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
-                    Integer.parseInt(parts[4]), Integer.parseInt(parts[5]), new Color(Integer.parseInt(parts[6])), parts[7]);
-          	//for rectangle
-            case "rectangle" -> new Rectangle(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
-                    Integer.parseInt(parts[4]), Integer.parseInt(parts[5]), new Color(Integer.parseInt(parts[6])), parts[7]);
-            //for segment
-			case "segment" -> new Segment(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
-                    Integer.parseInt(parts[4]), Integer.parseInt(parts[5]), new Color(Integer.parseInt(parts[6])), parts[7]);
-            default -> null;
-        };
+		Shape newShape = switch (msg.kind) {
+			case "ellipse" -> new Ellipse(msg.x1, msg.y1, msg.x2, msg.y2, color, id);  //for ellipse
+			case "rectangle" -> new Rectangle(msg.x1, msg.y1, msg.x2, msg.y2, color, id);  //for rectangle
+			case "segment" -> new Segment(msg.x1, msg.y1, msg.x2, msg.y2, color, id);  //for segment
+			default -> null;
+		};
 
 		//if shape is not null
-        if (newShape != null){
-			//new shape is added and repainted
-			editor.getSketch().addShape(newShape);
-			editor.repaint();
+		if (newShape != null){
+			//new shape is added (and repainted once the message is handled)
+			editor.getSketch().addShape(msg.id, newShape);
 		}
 	}
 
 
 	//handle move method
-	synchronized public void handleMove(String msg){
-		//arraylist parts
-		String[] parts = msg.split(" ");
-		// if length is smaller than 4 returns
-		if (parts.length < 4){
-			return;
-		}
-
-		//for each shape in shapelist
-		for (Shape shape: editor.getSketch().getShapeList()){
-			//if the id is equal to parts[1] it is moved
-			if (shape.getID().equals(parts[1])){
-				shape.moveBy(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
-			}
-		}
+	synchronized public void handleMove(SketchCommand msg){
+		//the shape with the id is moved
+		editor.getSketch().moveShape(msg.id, msg.dx, msg.dy);
 	}
 
 	//color handler method
-	synchronized public void handleRecolor(String msg){
-		String[] parts = msg.split(" ");
-		//if parts length is smaller than 3 returns
-		if (parts.length < 3){
-			return;
-		}
-
-		//for each shape in shape list
-		for (Shape shape: editor.getSketch().getShapeList()){
-			//if shape id is equal to parts[1]
-			if (shape.getID().equals(parts[1])){
-				//sets color
-				shape.setColor(new Color(Integer.parseInt(parts[2])));
-			}
-		}
-
+	synchronized public void handleRecolor(SketchCommand msg){
+		//sets color of the shape with the id
+		editor.getSketch().recolorShape(msg.id, colors.get(msg.rgb));
 	}
 
 	//method to handle delete
-	synchronized public void handleDelete(String msg){
-		String[] parts = msg.split(" ");
-		//if parts length smaller than 2 return
-		if (parts.length < 2){
-			return;
-		}
-
-		//iterator definition
-		Iterator<Shape> shapeIterator = editor.getSketch().getShapeList().iterator();
-		//while iterator has next
-		while (shapeIterator.hasNext()){
-			Shape shape = shapeIterator.next();
-			//if shape id is equal to parts[1]
-			if (shape.getID().equals(parts[1])){
-				//iterate
-				shapeIterator.remove();
-				editor.delete();
-				editor.repaint();
-			}
-		}
-
+	synchronized public void handleDelete(SketchCommand msg){
+		//removes the shape with the id, if there is one (the shape being drawn here has none yet, so it is never this)
+		editor.getSketch().deleteShape(msg.id);
 	}
 
-	//this method initalizes the sketch
-	public void initializeSketch(String msg){
-		String shapeList = msg.substring(msg.indexOf("{")+1, msg.indexOf("}"));
-		String[] shapes = shapeList.split(", ");
-		System.out.println(shapes[0]);
-
-		//for each shape str in shapes
-		for (String shapeStr: shapes){
-			String[] parts = shapeStr.split(" ");
-			//if parts length is less than 7 continues
-			if (parts.length < 7) continue;
-			//if it equals ellipse
-			if (parts[0].equals("ellipse")){
-				//handles it for ellipse
-				editor.getSketch().addShape(new Ellipse(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
-						Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), new Color(Integer.parseInt(parts[5])), parts[6]));
-			}
-			//if it is rectangle
-			else if (parts[0].equals("rectangle")){
-				//handles it for rectangle
-				editor.getSketch().addShape(new Rectangle(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
-					Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), new Color(Integer.parseInt(parts[5])), parts[6]));
-			}
-			//if it is a segment
-			else if (parts[0].equals("segment")){
-				//handles it for segment
-				editor.getSketch().addShape(new Segment(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
-						Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), new Color(Integer.parseInt(parts[5])), parts[6]));
-			}
-		}
-	}
-	
 }
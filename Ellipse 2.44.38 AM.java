@@ -59,6 +59,28 @@ public class Ellipse implements Shape {
 		return Math.pow(dx / a, 2) + Math.pow(dy / b, 2) <= 1;
 	}
 
+	/**
+	 * Box around every point contains() can accept, for the sketch's spatial index
+	 */
+	public java.awt.Rectangle getBounds() {
+		return new java.awt.Rectangle(x1, y1, x2-x1+1, y2-y1+1);
+	}
+
+	/**
+	 * The corners, for the sketch to store the ellipse as plain numbers
+	 */
+	public int getX1() { return x1; }
+	public int getY1() { return y1; }
+	public int getX2() { return x2; }
+	public int getY2() { return y2; }
+
+	/**
+	 * An identical, independent ellipse (same id)
+	 */
+	public Ellipse copy() {
+		return new Ellipse(x1, y1, x2, y2, color, id);
+	}
+
 	@Override
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+
+/**
+ * Map from long keys to int values, kept in two flat arrays (open addressing, linear probing),
+ * so looking up a shape's slot by its numeric id neither boxes the key nor allocates anything
+ *
+ * @co-author aral cay
+ */
+public class LongIntMap {
+	private static final long FREE = Long.MIN_VALUE;	// marks an empty cell; never a key
+	public static final int MISSING = -1;				// what get/remove return for a key that isn't there
+
+	private long[] keys;
+	private int[] values;
+	private int size = 0;
+
+	public LongIntMap() {
+		keys = new long[16];
+		Arrays.fill(keys, FREE);
+		values = new int[16];
+	}
+
+	/**
+	 * The value for the key, or MISSING
+	 */
+	public int get(long key) {
+		if (key == FREE) return MISSING;
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; keys[i] != FREE; i = (i + 1) & mask) {
+			if (keys[i] == key) return values[i];
+		}
+		return MISSING;
+	}
+
+	/**
+	 * Sets the value for the key
+	 */
+	public void put(long key, int value) {
+		if (key == FREE) throw new IllegalArgumentException("reserved key");
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		for (; keys[i] != FREE; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length) rehash(keys.length * 2);
+	}
+
+	/**
+	 * Removes the key, returning its value, or MISSING
+	 */
+	public int remove(long key) {
+		if (key == FREE) return MISSING;	// the probe below would take an empty cell for it
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		for (; keys[i] != key; i = (i + 1) & mask) {
+			if (keys[i] == FREE) return MISSING;
+		}
+		int value = values[i];
+		// shift later keys of the same run back into the hole, so lookups never stop short of them
+		for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+			int home = hash(keys[j]) & mask;
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		keys[i] = FREE;
+		size--;
+		return value;
+	}
+
+	/**
+	 * Removes every key
+	 */
+	public void clear() {
+		Arrays.fill(keys, FREE);
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		Arrays.fill(keys, FREE);
+		values = new int[capacity];
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != FREE) put(oldKeys[i], oldValues[i]);
+		}
+	}
+
+	// spreads sequential ids (the common case) across the table
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
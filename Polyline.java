@@ -1,27 +1,35 @@
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * A multi-segment Shape, with straight lines connecting "joint" points -- (x1,y1) to (x2,y2) to (x3,y3) ...
- * 
+ * The points are kept packed in two growable int arrays (no Point object per point), with their bounding box,
+ * so moving a long stroke is one pass over the arrays and drawing is a single drawPolyline.
+ * Shared, it is a freehand stroke: started with its first point, appended to as it is drawn, then finished.
+ *
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Spring 2016
  * @author CBK, updated Fall 2016
  * @author Tim Pierson Dartmouth CS 10, provided for Winter 2024
  * @co-author aral cay
  */
 public class Polyline implements Shape {
-	// TODO: YOUR CODE HERE
+	private static final int TOLERANCE = 10;	// pixels from the line that still count as on it
+	private static final int POINTS_PER_MESSAGE = 256;	// in the appends that send a whole stroke
 
 	private String id;
 	private Color color; // color
-	private int x1,y1,x2,y2; //x and y for the drawing
-	ArrayList<Point>points= new ArrayList<Point>(); //points arraylist
+	private int[] xs = new int[16], ys = new int[16];	// the points, in order; the first n are used
+	private int n = 0;
+	private int minX, minY, maxX, maxY;		// box around the points
+	private boolean finished = false;		// no more points are coming
 
 	//constructs polyline
 	public Polyline(Point p, Color color) {
 		//adds point p and colors
-		points.add(p);
 		this.color = color;
+		addPoint(p.x, p.y);
 	}
 
 
@@ -38,17 +46,27 @@ public class Polyline implements Shape {
 			this.id = id;
 	}
 
-	// moves the polyline by dx and dy
+	//an identical, independent polyline (same id)
+	public Polyline copy() {
+		Polyline copy = new Polyline(new Point(xs[0], ys[0]), color);
+		copy.xs = Arrays.copyOf(xs, Math.max(n, 1));
+		copy.ys = Arrays.copyOf(ys, Math.max(n, 1));
+		copy.n = n;
+		copy.minX = minX; copy.minY = minY; copy.maxX = maxX; copy.maxY = maxY;
+		copy.finished = finished;
+		copy.id = id;
+		return copy;
+	}
+
+	// moves the polyline by dx and dy, in place
 	@Override
 	public void moveBy(int dx, int dy) {
-		//for i in points.size
-		for(int i = 0;i<points.size();i++) {
-			//points are moved
-			Point temp = points.get(i);
-			points.remove(i);
-			points.add(i, new Point(temp.x+dx,temp.y+dy));
-		
+		for (int i = 0; i < n; i++) {
+			xs[i] += dx;
+			ys[i] += dy;
 		}
+		minX += dx; maxX += dx;
+		minY += dy; maxY += dy;
 	}
 
 	//returns color
@@ -66,16 +84,22 @@ public class Polyline implements Shape {
 	//returns if the point is contained
 	@Override
 	public boolean contains(int x, int y) {
-
-		for(int i1 = 0; i1<points.size()-1;i1++) {
+		// nowhere near the box, so nowhere near a segment
+		if (x < minX - TOLERANCE || x > maxX + TOLERANCE || y < minY - TOLERANCE || y > maxY + TOLERANCE) return false;
+		for (int i = 0; i < n - 1; i++) {
 			//if the point is contained in the shape returns true
-			if (Segment.pointToSegmentDistance(x, y, points.get(i1).x, points.get(i1).y, points.get(i1+1).x, points.get(i1+1).y) <= 10) {
+			if (Segment.pointToSegmentDistance(x, y, xs[i], ys[i], xs[i+1], ys[i+1]) <= TOLERANCE) {
 				return true;
 			}
 		}
 		//else returns false
 		return false;
-		
+
+	}
+
+	//box around every point contains() can accept: the points' box plus the 10-pixel tolerance
+	public java.awt.Rectangle getBounds() {
+		return new java.awt.Rectangle(minX-TOLERANCE, minY-TOLERANCE, maxX-minX+2*TOLERANCE+1, maxY-minY+2*TOLERANCE+1);
 	}
 
 	//draw method
@@ -83,29 +107,98 @@ public class Polyline implements Shape {
 	public void draw(Graphics g) {
 		//gets the color
 		g.setColor(color);
-		//for each i as i is smaller than the size of points
-		for(int i =0;i<points.size()-1;i++) {
-			//draw line
-			g.drawLine(points.get(i).x, points.get(i).y, points.get(i+1).x,points.get(i+1).y);
-		}
+		//all the lines in one go, straight from the arrays
+		g.drawPolyline(xs, ys, n);
 	}
 
 	//tostring method of polyline
 	@Override
 	public String toString() {
 
-		String s = "";
-			for(Point p:points) {
-				s += p.x+","+p.y+",";
+		StringBuilder s = new StringBuilder("polyline ");
+		for (int i = 0; i < n; i++) {
+			s.append(xs[i]).append(',').append(ys[i]).append(',');
+		}
+		return s.append(' ').append(color.getRGB()).toString();
+
+
+	}
+
+	//number of points
+	public int size() {
+		return n;
+	}
+
+	//coordinates of the i-th point
+	public int getX(int i) {
+		return xs[i];
+	}
+
+	public int getY(int i) {
+		return ys[i];
+	}
+
+	//adds count points, given (interleaved in deltas) as each one's offset from the one before
+	public void appendDeltas(int[] deltas, int count) {
+		int x = xs[n-1], y = ys[n-1];
+		for (int i = 0; i < count; i++) {
+			x += deltas[2*i];
+			y += deltas[2*i+1];
+			addPoint(x, y);
+		}
+	}
+
+	//marks the stroke done, and gives back the room kept for more points
+	public void finish() {
+		finished = true;
+		xs = Arrays.copyOf(xs, n);
+		ys = Arrays.copyOf(ys, n);
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * The messages that make this stroke from nothing, as the server broadcasts them: "stroke <id> <x> <y> <rgb>"
+	 * for the first point, "append <id> <dx> <dy> ..." for the rest, a few hundred points at a time, and
+	 * "finish <id>" if it is finished
+	 */
+	public List<String> messages() {
+		List<String> messages = new ArrayList<String>();
+		messages.add("stroke " + id + " " + xs[0] + " " + ys[0] + " " + color.getRGB());
+		for (int from = 1; from < n; from += POINTS_PER_MESSAGE) {
+			StringBuilder append = new StringBuilder("append ").append(id);
+			for (int i = from; i < Math.min(n, from + POINTS_PER_MESSAGE); i++) {
+				append.append(' ').append(xs[i] - xs[i-1]).append(' ').append(ys[i] - ys[i-1]);
 			}
-			return "polyline"+" "+s+" "+color.getRGB();
-		
-		
+			messages.add(append.toString());
+		}
+		if (finished) messages.add("finish " + id);
+		return messages;
 	}
+
 	//sets the end, adds p
 	public void setEnd(Point p) {
-		this.x2=p.x;
-		this.y2=p.y;
-		points.add(p);
+		addPoint(p.x, p.y);
+	}
+
+	//adds a point at the end, growing the arrays by half when full
+	public void addPoint(int x, int y) {
+		if (n == xs.length) {
+			xs = Arrays.copyOf(xs, n + (n >> 1) + 1);
+			ys = Arrays.copyOf(ys, xs.length);
+		}
+		xs[n] = x;
+		ys[n] = y;
+		if (n == 0) {
+			minX = maxX = x;
+			minY = maxY = y;
+		}
+		else {
+			minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+		}
+		n++;
 	}
 }
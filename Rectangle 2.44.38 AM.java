@@ -53,6 +53,17 @@ public class Rectangle implements Shape {
 
 	}
 
+	//the corners, for the sketch to store the rectangle as plain numbers
+	public int getX1() { return x1; }
+	public int getY1() { return y1; }
+	public int getX2() { return x2; }
+	public int getY2() { return y2; }
+
+	//an identical, independent rectangle (same id)
+	public Rectangle copy() {
+		return new Rectangle(x1, y1, x2, y2, color, id);
+	}
+
 	// TODO: YOUR CODE HERE
 	@Override
 	//moves it by dx and dy
@@ -82,6 +93,11 @@ public class Rectangle implements Shape {
 		return b;
 	}
 
+	//box around every point contains() can accept, for the sketch's spatial index
+	public java.awt.Rectangle getBounds() {
+		return new java.awt.Rectangle(x1, y1, x2-x1+1, y2-y1+1);
+	}
+
 	@Override
 	public void draw(Graphics graphs) {
 		//sets color
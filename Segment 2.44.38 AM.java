@@ -55,6 +55,21 @@ public class Segment implements Shape {
 		this.x2 = x2; this.y2 = y2;
 	}
 	
+	/**
+	 * The endpoints, for the sketch to store the segment as plain numbers
+	 */
+	public int getX1() { return x1; }
+	public int getY1() { return y1; }
+	public int getX2() { return x2; }
+	public int getY2() { return y2; }
+
+	/**
+	 * An identical, independent segment (same id)
+	 */
+	public Segment copy() {
+		return new Segment(x1, y1, x2, y2, color, id);
+	}
+
 	@Override
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
@@ -76,6 +91,13 @@ public class Segment implements Shape {
 		return pointToSegmentDistance(x, y, x1, y1, x2, y2) <= 3;
 	}
 
+	/**
+	 * Box around every point contains() can accept (the endpoints' box plus the 3-pixel tolerance)
+	 */
+	public java.awt.Rectangle getBounds() {
+		return new java.awt.Rectangle(Math.min(x1, x2)-3, Math.min(y1, y2)-3, Math.abs(x2-x1)+7, Math.abs(y2-y1)+7);
+	}
+
 	/**
 	 * Helper method to compute the distance between a point (x,y) and a segment (x1,y1)-(x2,y2)
 	 * http://stackoverflow.com/questions/849211/shortest-distance-between-a-point-and-a-line-segment
@@ -0,0 +1,113 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.*;
+
+/**
+ * Compares the SketchServer execution modes under the same number of connected editors.
+ * Starts a server in the given mode on a free port, connects that many plain socket clients,
+ * waits for each to have had the initial sketch, then reports platform threads, heap, resident memory
+ * and how long one add takes to reach everyone.
+ * Run once per mode so the numbers don't mix, e.g.
+ *     java ServerModeBenchmark platform 5000
+ *     java ServerModeBenchmark virtual 5000
+ *     java ServerModeBenchmark nio 5000
+ * (each client is two sockets in this process, so raise ulimit -n for big counts)
+ *
+ * @co-author aral cay
+ */
+public class ServerModeBenchmark {
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "platform";
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+		// Server on its own daemon thread, on any free port
+		int port;
+		if (mode.equals("nio")) {
+			SketchNioServer nio = new SketchNioServer(0, Runtime.getRuntime().availableProcessors());
+			port = nio.getPort();
+			startDaemon(() -> { nio.getConnections(); return null; });
+		}
+		else {
+			ServerSocket listen = new ServerSocket(0, clients);
+			port = listen.getLocalPort();
+			SketchServer server = new SketchServer(listen, mode.equals("virtual"));
+			startDaemon(() -> { server.getConnections(); return null; });
+		}
+
+		// Connect everyone (saying so at once, rather than leaving the server to wait) and wait for each to have
+		// had all of the greeting and the initial sketch, so all are being served and nothing else is on its way
+		long start = System.nanoTime();
+		Socket[] socks = new Socket[clients];
+		BufferedReader[] ins = new BufferedReader[clients];
+		for (int i = 0; i < clients; i++) {
+			socks[i] = new Socket("localhost", port);
+			ins[i] = new BufferedReader(new InputStreamReader(socks[i].getInputStream()));
+			new PrintWriter(socks[i].getOutputStream(), true).println("sync " + (i + 1));
+		}
+		for (BufferedReader in : ins) readUntil(in, "sketch end");
+		long connected = System.nanoTime() - start;
+
+		// One add from the first client, timed until every client has seen it
+		start = System.nanoTime();
+		new PrintWriter(socks[0].getOutputStream(), true).println("add rectangle 10 10 50 50 -16777216");
+		for (BufferedReader in : ins) readUntil(in, "add ");
+		long fanout = System.nanoTime() - start;
+
+		System.gc();
+		Runtime rt = Runtime.getRuntime();
+		System.err.println(mode + ", " + clients + " clients:"
+				+ " connect " + connected / 1_000_000 + " ms,"
+				+ " broadcast " + fanout / 1_000 + " us,"
+				+ " platform threads " + ManagementFactory.getThreadMXBean().getThreadCount() + ","
+				+ " heap " + (rt.totalMemory() - rt.freeMemory()) / (1 << 20) + " MB,"
+				+ " rss " + residentMB() + " MB");
+
+		for (Socket sock : socks) sock.close();
+	}
+
+	/**
+	 * Reads lines until one starting with prefix
+	 */
+	private static void readUntil(BufferedReader in, String prefix) throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith(prefix)) return;
+		}
+		throw new EOFException("server closed the connection");
+	}
+
+	/**
+	 * Runs the (never-returning) accept loop on a daemon thread
+	 */
+	private static void startDaemon(java.util.concurrent.Callable<Void> body) {
+		Thread t = new Thread(() -> {
+			try {
+				body.call();
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Resident set size from /proc (Linux), which unlike the heap includes thread stacks; -1 elsewhere
+	 */
+	private static long residentMB() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024;
+				}
+			}
+		}
+		catch (IOException e) {
+			// not Linux
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,165 @@
+import java.util.*;
+
+/**
+ * Uniform grid over the shapes' bounding boxes, so finding the shape under a click only calls contains()
+ * on the few shapes whose boxes overlap the clicked cell rather than on every shape in the sketch
+ *
+ * @co-author aral cay
+ */
+public class ShapeGrid {
+	private static final int CELL = 64;				// side of a cell, in pixels
+	private static final int MAX_CELLS = 4096;		// shapes covering more cells than this are just kept in a list
+
+	// where a shape is filed
+	private static class Entry {
+		long id;
+		int index;						// in entries
+		Shape shape;
+		long z;							// drawing order, higher is on top
+		int cx1, cy1, cx2, cy2;			// cells covered, inclusive
+		boolean oversized;				// in the oversized list instead of the cells
+	}
+
+	private Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();	// shapes overlapping each occupied cell
+	private List<Entry> entries = new ArrayList<Entry>();						// every shape, in no particular order
+	private LongIntMap index = new LongIntMap();								// id -> where its entry is in entries
+	private List<Entry> oversized = new ArrayList<Entry>();						// checked on every pick
+
+	/**
+	 * Files a new shape, drawn above everything with a lower z
+	 */
+	public void insert(long id, Shape shape, long z) {
+		remove(id);
+		Entry entry = new Entry();
+		entry.id = id;
+		entry.index = entries.size();
+		entry.shape = shape;
+		entry.z = z;
+		entries.add(entry);
+		index.put(id, entry.index);
+		file(entry);
+	}
+
+	/**
+	 * Forgets the shape with the id
+	 */
+	public void remove(long id) {
+		int i = index.remove(id);
+		if (i == LongIntMap.MISSING) return;
+		Entry entry = entries.get(i);
+		// the last entry fills the gap
+		Entry last = entries.remove(entries.size() - 1);
+		if (last != entry) {
+			last.index = i;
+			entries.set(i, last);
+			index.put(last.id, i);
+		}
+		unfile(entry);
+	}
+
+	/**
+	 * Refiles a shape after it has changed, or been replaced by a copy with the same id;
+	 * nothing to move if it is still over the same cells
+	 */
+	public void update(long id, Shape shape) {
+		int i = index.get(id);
+		if (i == LongIntMap.MISSING) return;
+		Entry entry = entries.get(i);
+		entry.shape = shape;
+		java.awt.Rectangle b = boundsOf(entry.shape);
+		if (b != null && !entry.oversized && Math.floorDiv(b.x, CELL) == entry.cx1 && Math.floorDiv(b.y, CELL) == entry.cy1
+				&& Math.floorDiv(b.x + b.width, CELL) == entry.cx2 && Math.floorDiv(b.y + b.height, CELL) == entry.cy2) {
+			return;
+		}
+		unfile(entry);
+		file(entry);
+	}
+
+	/**
+	 * Forgets every shape
+	 */
+	public void clear() {
+		cells.clear();
+		entries.clear();
+		index.clear();
+		oversized.clear();
+	}
+
+	/**
+	 * The top-most shape containing the point, or null
+	 */
+	public Shape pick(int x, int y) {
+		Entry best = null;
+		List<Entry> candidates = cells.get(key(Math.floorDiv(x, CELL), Math.floorDiv(y, CELL)));
+		if (candidates != null) {
+			for (Entry entry : candidates) {
+				if ((best == null || entry.z > best.z) && entry.shape.contains(x, y)) best = entry;
+			}
+		}
+		for (Entry entry : oversized) {
+			if ((best == null || entry.z > best.z) && entry.shape.contains(x, y)) best = entry;
+		}
+		return best == null ? null : best.shape;
+	}
+
+	/**
+	 * Adds the entry to every cell its shape's box overlaps
+	 */
+	private void file(Entry entry) {
+		java.awt.Rectangle b = boundsOf(entry.shape);
+		if (b == null) {
+			entry.oversized = true;
+			oversized.add(entry);
+			return;
+		}
+		entry.cx1 = Math.floorDiv(b.x, CELL);
+		entry.cy1 = Math.floorDiv(b.y, CELL);
+		entry.cx2 = Math.floorDiv(b.x + b.width, CELL);
+		entry.cy2 = Math.floorDiv(b.y + b.height, CELL);
+		entry.oversized = (long) (entry.cx2 - entry.cx1 + 1) * (entry.cy2 - entry.cy1 + 1) > MAX_CELLS;
+		if (entry.oversized) {
+			oversized.add(entry);
+			return;
+		}
+		for (int cx = entry.cx1; cx <= entry.cx2; cx++) {
+			for (int cy = entry.cy1; cy <= entry.cy2; cy++) {
+				cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<Entry>()).add(entry);
+			}
+		}
+	}
+
+	/**
+	 * Takes the entry back out of the cells it was filed in
+	 */
+	private void unfile(Entry entry) {
+		if (entry.oversized) {
+			oversized.remove(entry);
+			return;
+		}
+		for (int cx = entry.cx1; cx <= entry.cx2; cx++) {
+			for (int cy = entry.cy1; cy <= entry.cy2; cy++) {
+				Long key = key(cx, cy);
+				List<Entry> cell = cells.get(key);
+				if (cell != null) {
+					cell.remove(entry);
+					if (cell.isEmpty()) cells.remove(key);
+				}
+			}
+		}
+	}
+
+	private static Long key(int cx, int cy) {
+		return ((long) cx << 32) | (cy & 0xffffffffL);
+	}
+
+	/**
+	 * Bounding box of any of our shapes (null for a kind without one, which is then treated as oversized)
+	 */
+	private static java.awt.Rectangle boundsOf(Shape shape) {
+		if (shape instanceof Ellipse e) return e.getBounds();
+		if (shape instanceof Rectangle r) return r.getBounds();
+		if (shape instanceof Segment s) return s.getBounds();
+		if (shape instanceof Polyline p) return p.getBounds();
+		return null;
+	}
+}
@@ -1,17 +1,158 @@
 import java.awt.*;
 import java.util.*;
-import java.util.List;
 
 /**
+ * The shapes, by id, in drawing order. Readers that need to walk the whole sketch while it keeps changing
+ * (a new client's copy, painting, saving) take a snapshot(): an immutable view that shares storage
+ * with the live sketch, which copies a chunk only when it is about to change one a snapshot can see.
+ *
+ * Ellipses, rectangles and segments aren't kept as objects: each chunk holds its shapes as columns of plain
+ * numbers (kind, corners, color, id), about 30 bytes a shape, so a big sketch is a few arrays per 256 shapes
+ * rather than several objects per shape, and walking it reads memory in order. Shape objects are made from
+ * the numbers when asked for; drawing a snapshot reuses one per kind instead. Any other kind of shape
+ * (a polyline, say) is kept as the object it is, alongside.
+ *
+ * The sketch also keeps a box around everything changed since it was last asked (takeDirty()), so an editor
+ * only has to repaint that, and drawing a snapshot passes over the shapes outside what is being repainted.
+ *
  * @co-author aral cay
  */
 public class Sketch {
-    // shape list is defined
-    private final List<Shape> shapesList;
+    private static final int CHUNK_BITS = 8, CHUNK = 1 << CHUNK_BITS;   // slots per chunk
+
+    // what each slot holds
+    private static final byte NONE = 0, ELLIPSE = 1, RECTANGLE = 2, SEGMENT = 3, OTHER = 4;
+
+    // id -> slot; slots run in insertion order, which is the drawing (z) order, oldest at the bottom
+    private final LongIntMap slots;
+    // the shapes by slot, a chunk at a time
+    private Chunk[] chunks;
+    // slots used so far, and how many of them still hold a shape
+    private int end = 0, size = 0;
+    // bumped by every snapshot that has changes to show
+    private long epoch = 0;
+    // bumped by every change
+    private long version = 0;
+    // most recent snapshot, handed out again while nothing has changed
+    private Snapshot last;
+    // broad phase for shapeAt, kept in step with the shapes (null if not wanted, e.g. on the server)
+    private final ShapeGrid grid;
+    // z of the next shape added
+    private long nextZ = 0;
+    // colors for the shapes made from the numbers (under the sketch's lock)
+    private final ColorCache colors = new ColorCache();
+    // box around everything changed since takeDirty() last asked, inclusive (empty while dirtyX1 > dirtyX2)
+    private int dirtyX1 = Integer.MAX_VALUE, dirtyY1 = Integer.MAX_VALUE, dirtyX2 = Integer.MIN_VALUE, dirtyY2 = Integer.MIN_VALUE;
+
+    // one chunk's shapes, column by column
+    private static final class Chunk {
+        final byte[] kind;                  // NONE where one was deleted
+        final int[] x1, y1, x2, y2;         // corners (rectangles and ellipses) or endpoints (segments)
+        final int[] rgb;
+        final long[] id;
+        Shape[] other;                      // the shapes of other kinds, by slot (null until the chunk has one)
+        long[] otherEpoch;                  // epoch each of those was made in (they are changed in place, so copied first)
+        final long epoch;                   // made in this epoch; older means a snapshot may be sharing it
+
+        Chunk(long epoch){
+            kind = new byte[CHUNK];
+            x1 = new int[CHUNK]; y1 = new int[CHUNK]; x2 = new int[CHUNK]; y2 = new int[CHUNK];
+            rgb = new int[CHUNK];
+            id = new long[CHUNK];
+            this.epoch = epoch;
+        }
+
+        private Chunk(Chunk from, long epoch){
+            kind = from.kind.clone();
+            x1 = from.x1.clone(); y1 = from.y1.clone(); x2 = from.x2.clone(); y2 = from.y2.clone();
+            rgb = from.rgb.clone();
+            id = from.id.clone();
+            if (from.other != null){
+                other = from.other.clone();
+                otherEpoch = from.otherEpoch.clone();
+            }
+            this.epoch = epoch;
+        }
+
+        // copies slot i of from into slot j
+        void set(int j, Chunk from, int i){
+            kind[j] = from.kind[i];
+            x1[j] = from.x1[i]; y1[j] = from.y1[i]; x2[j] = from.x2[i]; y2[j] = from.y2[i];
+            rgb[j] = from.rgb[i];
+            id[j] = from.id[i];
+            if (from.other != null && from.other[i] != null){
+                putOther(j, from.other[i], from.otherEpoch[i]);
+            }
+        }
+
+        void putOther(int i, Shape shape, long epoch){
+            if (other == null){
+                other = new Shape[CHUNK];
+                otherEpoch = new long[CHUNK];
+            }
+            other[i] = shape;
+            otherEpoch[i] = epoch;
+        }
+
+        // a new, independent shape object for slot i (an other kind's own object, which the caller mustn't change)
+        Shape shape(int i, ColorCache colors){
+            Color color = colors.get(rgb[i]);
+            return switch (kind[i]) {
+                case ELLIPSE -> new Ellipse(x1[i], y1[i], x2[i], y2[i], color, Long.toString(id[i]));
+                case RECTANGLE -> new Rectangle(x1[i], y1[i], x2[i], y2[i], color, Long.toString(id[i]));
+                case SEGMENT -> new Segment(x1[i], y1[i], x2[i], y2[i], color, Long.toString(id[i]));
+                default -> other[i];
+            };
+        }
+    }
+
+    // one reusable shape of each stored kind, loaded from a slot in turn to draw it or test a point against it
+    private static final class Flyweights {
+        final Ellipse ellipse = new Ellipse(0, 0, Color.black);
+        final Rectangle rectangle = new Rectangle(0, 0, Color.black);
+        final Segment segment = new Segment(0, 0, Color.black);
+        final ColorCache colors;
+
+        Flyweights(ColorCache colors){
+            this.colors = colors;
+        }
+
+        // slot i of the chunk, as a shape valid until the next call (no id; other kinds are their own object)
+        Shape load(Chunk chunk, int i){
+            switch (chunk.kind[i]) {
+                case ELLIPSE -> {
+                    ellipse.setCorners(chunk.x1[i], chunk.y1[i], chunk.x2[i], chunk.y2[i]);
+                    ellipse.setColor(colors.get(chunk.rgb[i]));
+                    return ellipse;
+                }
+                case RECTANGLE -> {
+                    rectangle.setCorners(chunk.x1[i], chunk.y1[i], chunk.x2[i], chunk.y2[i]);
+                    rectangle.setColor(colors.get(chunk.rgb[i]));
+                    return rectangle;
+                }
+                case SEGMENT -> {
+                    segment.setStart(chunk.x1[i], chunk.y1[i]);
+                    segment.setEnd(chunk.x2[i], chunk.y2[i]);
+                    segment.setColor(colors.get(chunk.rgb[i]));
+                    return segment;
+                }
+                default -> {
+                    return chunk.other[i];
+                }
+            }
+        }
+    }
 
     //constructor for Sketch
     public Sketch(){
-        this.shapesList = new ArrayList<Shape>();
+        this(false);
+    }
+
+    //spatialIndex: keep a grid so shapeAt doesn't have to try every shape
+    public Sketch(boolean spatialIndex){
+        this.slots = new LongIntMap();
+        this.chunks = new Chunk[4];
+        this.grid = spatialIndex ? new ShapeGrid() : null;
     }
 
     //delete shape method
@@ -19,43 +160,409 @@ public class Sketch {
         //if the id is null error
         if (delete.getID() == null){
             System.err.println("Error: no id");
+            return;
+        }
+        deleteShape(delete.getID());
+    }
+
+    //deletes the shape with the id, returns it (null if there was none)
+    public Shape deleteShape(String id){
+        return deleteShape(key(id));
+    }
+
+    //deletes the shape with the id, returns it (null if there was none)
+    public synchronized Shape deleteShape(long id){
+        if (id < 0) return null;   // never an id (see key)
+        int slot = slots.remove(id);
+        if (slot == LongIntMap.MISSING) return null;
+        Chunk chunk = writableChunk(slot >> CHUNK_BITS);
+        int i = slot & (CHUNK - 1);
+        Shape removed = chunk.shape(i, colors);
+        touch(chunk, i);
+        chunk.kind[i] = NONE;
+        if (chunk.other != null) chunk.other[i] = null;
+        size--;
+        version++;
+        if (grid != null) grid.remove(id);
+        if (end - size > CHUNK && end - size > size) compact();
+        return removed;
+    }
+
+    //add shape method; the shape must already have its id
+    public void addShape(Shape shape){
+        addShape(key(shape.getID()), shape);
+    }
+
+    //add shape method, for a caller that has the shape's id as a number already (it must be the one the shape has);
+    //the sketch keeps the shape's numbers (or, for a kind it can't take apart, the shape), not the object given
+    public synchronized void addShape(long id, Shape shape){
+        if (id < 0){
+            System.err.println("Error: no id");
+            return;
+        }
+        deleteShape(id);   // re-adding puts it back on top
+        int c = end >> CHUNK_BITS;
+        if (c == chunks.length){
+            chunks = Arrays.copyOf(chunks, c * 2);
+        }
+        if (chunks[c] == null){
+            chunks[c] = new Chunk(epoch);
+        }
+        // past every snapshot's end, so no need to copy the chunk for this
+        Chunk chunk = chunks[c];
+        int i = end & (CHUNK - 1);
+        chunk.id[i] = id;
+        chunk.rgb[i] = shape.getColor() == null ? 0 : shape.getColor().getRGB();
+        if (shape instanceof Ellipse e){
+            store(chunk, i, ELLIPSE, e.getX1(), e.getY1(), e.getX2(), e.getY2());
+        }
+        else if (shape instanceof Rectangle r){
+            store(chunk, i, RECTANGLE, r.getX1(), r.getY1(), r.getX2(), r.getY2());
+        }
+        else if (shape instanceof Segment s){
+            store(chunk, i, SEGMENT, s.getX1(), s.getY1(), s.getX2(), s.getY2());
+        }
+        else {
+            chunk.kind[i] = OTHER;
+            chunk.putOther(i, copyOf(shape), epoch);   // ours to change
+        }
+        touch(chunk, i);
+        slots.put(id, end);
+        end++;
+        size++;
+        version++;
+        if (grid != null) grid.insert(id, chunk.shape(i, colors), nextZ);
+        nextZ++;
+    }
+
+    private static void store(Chunk chunk, int i, byte kind, int x1, int y1, int x2, int y2){
+        chunk.kind[i] = kind;
+        chunk.x1[i] = x1; chunk.y1[i] = y1; chunk.x2[i] = x2; chunk.y2[i] = y2;
+    }
+
+    //removes every shape (e.g. before loading a fresh copy of the sketch); snapshots already taken keep theirs
+    public synchronized void clear(){
+        slots.clear();
+        chunks = new Chunk[4];
+        end = size = 0;
+        version++;
+        touch(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        if (grid != null) grid.clear();
+    }
+
+    //a copy of the shape with the id, or null; changing it doesn't change the sketch (moveShape/recolorShape do)
+    public Shape getShape(String id){
+        return getShape(key(id));
+    }
+
+    //a copy of the shape with the id, or null
+    public synchronized Shape getShape(long id){
+        if (id < 0) return null;
+        int slot = slots.get(id);
+        if (slot == LongIntMap.MISSING) return null;
+        Shape shape = chunks[slot >> CHUNK_BITS].shape(slot & (CHUNK - 1), colors);
+        return copyOf(shape);
+    }
+
+    //moves the shape with the id, returns whether there was one
+    public boolean moveShape(String id, int dx, int dy){
+        return moveShape(key(id), dx, dy);
+    }
+
+    //moves the shape with the id, returns whether there was one
+    public synchronized boolean moveShape(long id, int dx, int dy){
+        if (id < 0) return false;
+        int slot = slots.get(id);
+        if (slot == LongIntMap.MISSING) return false;
+        Chunk chunk = writableChunk(slot >> CHUNK_BITS);
+        int i = slot & (CHUNK - 1);
+        touch(chunk, i);   // where it was
+        if (chunk.kind[i] == OTHER){
+            writableOther(chunk, i).moveBy(dx, dy);
         }
+        else {
+            chunk.x1[i] += dx; chunk.y1[i] += dy;
+            chunk.x2[i] += dx; chunk.y2[i] += dy;
+        }
+        touch(chunk, i);   // and where it is
+        version++;
+        if (grid != null) grid.update(id, chunk.shape(i, colors));
+        return true;
+    }
+
+    //recolors the shape with the id, returns whether there was one
+    public boolean recolorShape(String id, Color color){
+        return recolorShape(key(id), color);
+    }
+
+    //recolors the shape with the id, returns whether there was one
+    public synchronized boolean recolorShape(long id, Color color){
+        if (id < 0) return false;
+        int slot = slots.get(id);
+        if (slot == LongIntMap.MISSING) return false;
+        Chunk chunk = writableChunk(slot >> CHUNK_BITS);
+        int i = slot & (CHUNK - 1);
+        chunk.rgb[i] = color.getRGB();
+        if (chunk.kind[i] == OTHER) writableOther(chunk, i).setColor(color);
+        touch(chunk, i);
+        version++;
+        if (grid != null) grid.update(id, chunk.shape(i, colors));
+        return true;
+    }
+
+    //adds count points (each as its offset from the one before) to the stroke with the id, returns whether there was
+    //one still being drawn (a late or replayed append to a finished stroke is ignored)
+    public synchronized boolean extendStroke(long id, int[] deltas, int count){
+        if (id < 0) return false;
+        int slot = slots.get(id);
+        if (slot == LongIntMap.MISSING) return false;
+        Chunk chunk = chunks[slot >> CHUNK_BITS];
+        int i = slot & (CHUNK - 1);
+        if (chunk.kind[i] != OTHER || !(chunk.other[i] instanceof Polyline drawn) || drawn.isFinished()) return false;
+        Polyline stroke = writableStroke(id);
+        int from = stroke.size() - 1;
+        stroke.appendDeltas(deltas, count);
+        for (int p = from; p < stroke.size(); p++){   // just the new bit of line changes
+            touch(stroke.getX(p) - 1, stroke.getY(p) - 1, stroke.getX(p) + 1, stroke.getY(p) + 1);
+        }
+        version++;
+        if (grid != null) grid.update(id, stroke);
+        return true;
+    }
+
+    //marks the stroke with the id as done, returns whether there was one
+    public synchronized boolean finishStroke(long id){
+        if (id < 0) return false;
+        Polyline stroke = writableStroke(id);
+        if (stroke == null) return false;
+        stroke.finish();
+        version++;
+        if (grid != null) grid.update(id, stroke);   // it may be a fresh copy
+        return true;
+    }
+
+    //the polyline with the id, ready to change (null if the id isn't a polyline's)
+    private Polyline writableStroke(long id){
+        int slot = slots.get(id);
+        if (slot == LongIntMap.MISSING) return null;
+        Chunk chunk = writableChunk(slot >> CHUNK_BITS);
+        int i = slot & (CHUNK - 1);
+        return chunk.kind[i] == OTHER && chunk.other[i] instanceof Polyline ? (Polyline) writableOther(chunk, i) : null;
+    }
+
+    //the other kind of shape in the slot of a writable chunk, copied first if a snapshot may be sharing it
+    private Shape writableOther(Chunk chunk, int i){
+        if (chunk.otherEpoch[i] < epoch){
+            chunk.other[i] = copyOf(chunk.other[i]);
+            chunk.otherEpoch[i] = epoch;
+        }
+        return chunk.other[i];
+    }
+
+    //the box around everything the changes since the last call could have changed on screen
+    //(a pixel beyond each shape), or null if nothing has changed
+    public synchronized java.awt.Rectangle takeDirty(){
+        if (dirtyX1 > dirtyX2) return null;
+        java.awt.Rectangle dirty = new java.awt.Rectangle(dirtyX1, dirtyY1,
+                (int) Math.min(Integer.MAX_VALUE, (long) dirtyX2 - dirtyX1 + 1), (int) Math.min(Integer.MAX_VALUE, (long) dirtyY2 - dirtyY1 + 1));
+        dirtyX1 = dirtyY1 = Integer.MAX_VALUE;
+        dirtyX2 = dirtyY2 = Integer.MIN_VALUE;
+        return dirty;
+    }
 
-        Iterator<Shape> itr = shapesList.iterator();
-        //iterates through shapes and deletes them
-        while (itr.hasNext()){
-            Shape temporary;
-            temporary = itr.next();
-            if (temporary.getID().equals(delete.getID())){
-                itr.remove();
+    //adds the area the shape in the slot is drawn over to the dirty box
+    private void touch(Chunk chunk, int i){
+        if (chunk.kind[i] == OTHER){
+            if (chunk.other[i] instanceof Polyline p){
+                java.awt.Rectangle b = p.getBounds();
+                touch(b.x, b.y, b.x + b.width, b.y + b.height);
             }
+            else {   // no telling where it draws
+                touch(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+            }
+        }
+        else if (chunk.kind[i] != NONE){
+            touch(Math.min(chunk.x1[i], chunk.x2[i]) - 1, Math.min(chunk.y1[i], chunk.y2[i]) - 1,
+                    Math.max(chunk.x1[i], chunk.x2[i]) + 1, Math.max(chunk.y1[i], chunk.y2[i]) + 1);
         }
     }
 
-    //add shape method
-    public void addShape(Shape shape){
+    private void touch(int x1, int y1, int x2, int y2){
+        dirtyX1 = Math.min(dirtyX1, x1); dirtyY1 = Math.min(dirtyY1, y1);
+        dirtyX2 = Math.max(dirtyX2, x2); dirtyY2 = Math.max(dirtyY2, y2);
+    }
+
+    //the top-most shape containing the point, or null
+    public synchronized Shape shapeAt(int x, int y){
+        if (grid != null){
+            return copyOf(grid.pick(x, y));   // the grid holds our own shapes, which are changed in place
+        }
+        Flyweights shapes = new Flyweights(colors);
+        int top = -1;
+        for (int slot = 0; slot < end; slot++){
+            Chunk chunk = chunks[slot >> CHUNK_BITS];
+            int i = slot & (CHUNK - 1);
+            if (chunk.kind[i] != NONE && shapes.load(chunk, i).contains(x, y)) top = slot;
+        }
+        return top < 0 ? null : copyOf(chunks[top >> CHUNK_BITS].shape(top & (CHUNK - 1), colors));
+    }
+
+    //an immutable view of the shapes as they are now, bottom to top; costs a copy of the chunk table, not of the shapes
+    public synchronized Snapshot snapshot(){
+        if (last == null || last.version != version){
+            last = new Snapshot(chunks.clone(), end, size, version);
+            epoch++;   // from here on, everything the snapshot can see is copied before it is changed
+        }
+        return last;
+    }
+
+    //number of shapes
+    public synchronized int size(){
+        return size;
+    }
 
-        this.shapesList.add(shape);
+    //the chunk, copied first if a snapshot may be sharing it
+    private Chunk writableChunk(int c){
+        if (chunks[c].epoch < epoch){
+            chunks[c] = new Chunk(chunks[c], epoch);
+        }
+        return chunks[c];
+    }
+
+    //squeezes out the deleted slots into fresh chunks (the old ones may belong to snapshots)
+    private void compact(){
+        int chunkCount = Math.max(4, Integer.highestOneBit(Math.max(1, size >> CHUNK_BITS)) * 2);
+        Chunk[] newChunks = new Chunk[chunkCount];
+        int n = 0;
+        for (int slot = 0; slot < end; slot++){
+            Chunk chunk = chunks[slot >> CHUNK_BITS];
+            int i = slot & (CHUNK - 1);
+            if (chunk.kind[i] == NONE) continue;
+            int c = n >> CHUNK_BITS;
+            if (newChunks[c] == null){
+                newChunks[c] = new Chunk(epoch);
+            }
+            newChunks[c].set(n & (CHUNK - 1), chunk, i);
+            slots.put(chunk.id[i], n);
+            n++;
+        }
+        chunks = newChunks;
+        end = n;
     }
 
-  //return shapes
-    public List<Shape> getShapeList(){
+    //a shape id as a key; ids are the server's counters, so anything else (or none) is -1, which is never in the sketch
+    private static long key(String id){
+        if (id == null) return -1;
+        try {
+            long key = Long.parseLong(id);
+            return key < 0 ? -1 : key;
+        }
+        catch (NumberFormatException e){
+            return -1;
+        }
+    }
 
-        return this.shapesList;
+    //a private copy of one of our shapes (one of an unknown kind can't be copied, and is shared as is)
+    private static Shape copyOf(Shape shape){
+        if (shape instanceof Ellipse e) return e.copy();
+        if (shape instanceof Rectangle r) return r.copy();
+        if (shape instanceof Segment s) return s.copy();
+        if (shape instanceof Polyline p) return p.copy();
+        return shape;
     }
 
-    //to string method
+    //to string method (for printing; clients are sent the shapes by a SnapshotStream)
     @Override
     public String toString(){
 
-        String returnVal = "Sketch output: { ";
-        for (Shape shape: shapesList){
-            returnVal += shape.toString();
-            returnVal += ", ";
+        StringBuilder returnVal = new StringBuilder("Sketch output: { ");
+        for (Shape shape: snapshot()){
+            returnVal.append(shape.toString());
+            returnVal.append(", ");
+        }
+
+        returnVal.append(" }");
+        return returnVal.toString();
+
+    }
+
+    /**
+     * The shapes at one version of a sketch, bottom to top. Never changes, so it can be read
+     * from any thread, for as long as needed, without holding up the sketch.
+     * Iterating makes a shape object per shape (with its id, e.g. to send it); draw() makes none.
+     */
+    public static class Snapshot implements Iterable<Shape> {
+        private final Chunk[] chunks;
+        private final int end, size;
+        private final long version;
+
+        private Snapshot(Chunk[] chunks, int end, int size, long version){
+            this.chunks = chunks;
+            this.end = end;
+            this.size = size;
+            this.version = version;
+        }
+
+        //number of shapes
+        public int size(){
+            return size;
+        }
+
+        //how many changes the sketch had seen when this was taken
+        public long getVersion(){
+            return version;
         }
 
-        returnVal += " }";
-        return returnVal;
+        //draws every shape, bottom to top, through one reused shape per kind;
+        //shapes wholly outside the graphics' clip (e.g. a repaint of just what changed) are passed over on their numbers
+        public void draw(Graphics g){
+            Flyweights shapes = new Flyweights(new ColorCache());
+            java.awt.Rectangle clip = g.getClipBounds();
+            int left = Integer.MIN_VALUE, top = Integer.MIN_VALUE, right = Integer.MAX_VALUE, bottom = Integer.MAX_VALUE;
+            if (clip != null){
+                left = clip.x - 1; top = clip.y - 1;   // a pixel's slack, for how shapes are drawn
+                right = clip.x + clip.width + 1; bottom = clip.y + clip.height + 1;
+            }
+            for (int c = 0; c << CHUNK_BITS < end; c++){
+                Chunk chunk = chunks[c];
+                int n = Math.min(CHUNK, end - (c << CHUNK_BITS));
+                for (int i = 0; i < n; i++){
+                    byte kind = chunk.kind[i];
+                    if (kind == NONE) continue;
+                    if (kind == OTHER){
+                        if (clip != null && chunk.other[i] instanceof Polyline p && !p.getBounds().intersects(clip)) continue;
+                    }
+                    else if (Math.max(chunk.x1[i], chunk.x2[i]) < left || Math.min(chunk.x1[i], chunk.x2[i]) > right
+                            || Math.max(chunk.y1[i], chunk.y2[i]) < top || Math.min(chunk.y1[i], chunk.y2[i]) > bottom){
+                        continue;
+                    }
+                    shapes.load(chunk, i).draw(g);
+                }
+            }
+        }
+
+        @Override
+        public Iterator<Shape> iterator(){
+            return new Iterator<Shape>(){
+                private final ColorCache colors = new ColorCache();
+                private int slot = advance(0);
 
+                private int advance(int from){
+                    while (from < end && chunks[from >> CHUNK_BITS].kind[from & (CHUNK - 1)] == NONE) from++;
+                    return from;
+                }
+
+                public boolean hasNext(){
+                    return slot < end;
+                }
+
+                public Shape next(){
+                    if (slot >= end) throw new NoSuchElementException();
+                    Shape shape = chunks[slot >> CHUNK_BITS].shape(slot & (CHUNK - 1), colors);
+                    slot = advance(slot + 1);
+                    return shape;
+                }
+            };
+        }
     }
 }
@@ -0,0 +1,140 @@
+import java.awt.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Times Sketch lookups by id (what every move/recolor/delete does) as the sketch grows,
+ * to check that the per-operation cost stays flat from a hundred shapes to a million,
+ * with the heap each shape takes; then moving a 10,000-point freehand stroke;
+ * then thinning out scribbled strokes (how many points are left, and how far the result strays from what was drawn);
+ * then parsing a move line, with the bytes it allocates (which should be none).
+ *     java -Xmx2g SketchBenchmark
+ *
+ * @co-author aral cay
+ */
+public class SketchBenchmark {
+	private static final int OPS = 1_000_000;		// timed operations per size
+
+	public static void main(String[] args) {
+		int[] sizes = {100, 1_000, 10_000, 100_000, 1_000_000};
+		Random random = new Random(42);
+		for (int n : sizes) {
+			long heap = usedHeap();
+			Sketch sketch = new Sketch();
+			for (int i = 0; i < n; i++) {
+				sketch.addShape(new Rectangle(i % 800, i % 800, i % 800 + 20, i % 800 + 20, Color.black, Long.toString(i + 1)));
+			}
+			heap = usedHeap() - heap;
+
+			// the ids to hit, chosen up front so the timing is just the sketch
+			long[] targets = new long[OPS];
+			for (int i = 0; i < OPS; i++) targets[i] = 1 + random.nextInt(n);
+
+			for (int round = 0; round < 3; round++) {	// the first rounds warm up the JIT
+				long start = System.nanoTime();
+				for (long id : targets) sketch.moveShape(id, 1, -1);
+				long move = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < OPS; i += 100) {	// delete and re-add, so the size holds
+					Shape shape = sketch.deleteShape(targets[i]);
+					if (shape != null) sketch.addShape(shape);
+				}
+				long churn = System.nanoTime() - start;
+
+				if (round == 2) {
+					System.out.printf("%,10d shapes: move %6.1f ns/op, delete+add %6.1f ns/op, %5.1f bytes/shape%n",
+							n, (double) move / OPS, (double) churn / (OPS / 100), (double) heap / n);
+				}
+			}
+		}
+
+		// a long freehand stroke, dragged around
+		Polyline stroke = new Polyline(new Point(0, 0), Color.black);
+		for (int i = 1; i < 10_000; i++) stroke.setEnd(new Point(i % 800, i / 800));
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < 1000; i++) stroke.moveBy(1, -1);
+			long move = System.nanoTime() - start;
+			if (round == 2) System.out.printf("move 10,000-point polyline: %6.1f us/op%n", move / 1000 / 1e3);
+		}
+
+		// scribbles as the mouse reports them (a point every pixel or few, on wandering curves), thinned out as drawn
+		for (double tolerance : new double[] {0.5, 1, 2}) {
+			long seen = 0, kept = 0, time = 0;
+			double worst = 0;
+			Random scribbles = new Random(7);
+			for (int s = 0; s < 200; s++) {
+				Polyline drawn = scribble(scribbles);
+				long start = System.nanoTime();
+				StrokeSimplifier thin = new StrokeSimplifier(drawn.getX(0), drawn.getY(0), tolerance);
+				for (int i = 1; i < drawn.size(); i++) thin.add(drawn.getX(i), drawn.getY(i));
+				thin.finish();
+				time += System.nanoTime() - start;
+				seen += thin.getSeen();
+				kept += thin.getKept();
+
+				// the stroke as sent, and how far any drawn point is from it
+				StringBuilder deltas = new StringBuilder();
+				thin.takeDeltas(deltas);
+				String[] d = deltas.toString().trim().split(" ");
+				Polyline sent = new Polyline(new Point(drawn.getX(0), drawn.getY(0)), Color.black);
+				for (int i = 0; i + 1 < d.length; i += 2) {
+					sent.addPoint(sent.getX(sent.size()-1) + Integer.parseInt(d[i]), sent.getY(sent.size()-1) + Integer.parseInt(d[i+1]));
+				}
+				for (int i = 0; i < drawn.size(); i++) {
+					double near = Double.MAX_VALUE;
+					for (int j = 0; j < sent.size() - 1; j++) {
+						near = Math.min(near, Segment.pointToSegmentDistance(drawn.getX(i), drawn.getY(i),
+								sent.getX(j), sent.getY(j), sent.getX(j+1), sent.getY(j+1)));
+					}
+					if (sent.size() > 1) worst = Math.max(worst, near);
+				}
+			}
+			System.out.printf("simplify at %.1f px: %,d points -> %,d (%.1fx), at most %.2f px off, %5.1f ns/point%n",
+					tolerance, seen, kept, (double) seen / kept, worst, (double) time / seen);
+		}
+
+		// parsing, as an I/O thread does for every message
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		ByteBuffer line = ByteBuffer.wrap("move 123456 -17 42".getBytes());
+		SketchCommand cmd = new SketchCommand();
+		for (int round = 0; round < 3; round++) {
+			long allocated = threads.getCurrentThreadAllocatedBytes();
+			long start = System.nanoTime();
+			long sum = 0;
+			for (int i = 0; i < OPS; i++) {
+				cmd.parse(line);
+				sum += cmd.dx;
+			}
+			long parse = System.nanoTime() - start;
+			allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+			if (round == 2 && sum != 0) {
+				System.out.printf("parse move: %6.1f ns/op, %.2f bytes/op%n", (double) parse / OPS, (double) allocated / OPS);
+			}
+		}
+	}
+
+	// a few seconds of freehand drawing: the pen drifting round a wobbly path, a pixel or three per mouse event
+	private static Polyline scribble(Random random) {
+		double x = 400, y = 400, heading = random.nextDouble() * 2 * Math.PI, turn = 0;
+		Polyline stroke = new Polyline(new Point(400, 400), Color.black);
+		for (int i = 0; i < 1000; i++) {
+			turn = 0.9 * turn + 0.02 * random.nextGaussian();
+			heading += turn;
+			double step = 1 + 2 * random.nextDouble();
+			x += step * Math.cos(heading);
+			y += step * Math.sin(heading);
+			stroke.addPoint((int) Math.round(x), (int) Math.round(y));
+		}
+		return stroke;
+	}
+
+	// bytes of heap in use, after a collection (near enough, for a difference over many shapes)
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,353 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The optional compact framing for the sketch messages, and the handshake that turns it on.
+ *
+ * The server opens every connection with the text line "hello <version> <run>". A client that wants binary answers with
+ * the line "binary" and from then on sends frames; the server answers "binary ok" and from then on sends it
+ * frames. Clients that never answer (older editors) just keep talking text, in the same sketch.
+ *
+ * A frame is its length (varint) then an opcode byte and its fields:
+ *     ADD      kind byte, x1 y1 x2 y2 (zigzag varints), argb (4 bytes), id (varint; left off by clients)
+ *     MOVE     id (varint), dx dy (zigzag varints)
+ *     RECOLOR  id (varint), argb (4 bytes)
+ *     DELETE   id (varint)
+ *     STROKE   stroke (varint), x y of its first point (zigzag varints), argb (4 bytes)
+ *     APPEND   stroke (varint), point count (varint), then each point's dx dy from the one before (zigzag varints)
+ *     FINISH   stroke (varint)
+ *     OP       the client's operation number (varint), then one of the above: "op <n> <operation>"
+ *     TEXT     any other message, as its UTF-8 text line
+ * so a typical move is 6 bytes rather than a text line, and a freehand stroke about 2 bytes a point.
+ *
+ * @co-author aral cay
+ */
+public class SketchBinaryProtocol {
+	public static final int VERSION = 4;			// announced in the hello; 2 added binary frames, 3 resume, 4 strokes
+	public static final int MAX_FRAME = 1 << 20;	// longest frame a reader accepts
+
+	public static final byte TEXT = 0, ADD = 1, MOVE = 2, RECOLOR = 3, DELETE = 4, OP = 5, STROKE = 6, APPEND = 7, FINISH = 8;
+	private static final String[] KINDS = {null, "ellipse", "rectangle", "segment"};	// index is the kind byte
+
+	/**
+	 * The frame for a text message, length included, as a read-only buffer any number of clients can share
+	 */
+	public static ByteBuffer encode(String msg) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(16);
+		String[] parts = msg.split(" ");
+		try {
+			if (parts[0].equals("op") && parts.length > 2) {
+				payload.write(OP);
+				writeUnsigned(payload, Long.parseLong(parts[1]));
+				parts = Arrays.copyOfRange(parts, 2, parts.length);
+			}
+			switch (parts[0]) {
+				case "add" -> {
+					int kind = kindOf(parts[1]);
+					if (kind == 0 || parts.length < 7 || parts.length > 8) return encodeText(msg);
+					payload.write(ADD);
+					payload.write(kind);
+					for (int i = 2; i <= 5; i++) writeSigned(payload, Integer.parseInt(parts[i]));
+					writeColor(payload, Integer.parseInt(parts[6]));
+					if (parts.length == 8) writeUnsigned(payload, Long.parseLong(parts[7]));
+				}
+				case "move" -> {
+					if (parts.length != 4) return encodeText(msg);
+					payload.write(MOVE);
+					writeUnsigned(payload, Long.parseLong(parts[1]));
+					writeSigned(payload, Integer.parseInt(parts[2]));
+					writeSigned(payload, Integer.parseInt(parts[3]));
+				}
+				case "recolor" -> {
+					if (parts.length != 3) return encodeText(msg);
+					payload.write(RECOLOR);
+					writeUnsigned(payload, Long.parseLong(parts[1]));
+					writeColor(payload, Integer.parseInt(parts[2]));
+				}
+				case "delete" -> {
+					if (parts.length != 2) return encodeText(msg);
+					payload.write(DELETE);
+					writeUnsigned(payload, Long.parseLong(parts[1]));
+				}
+				case "stroke" -> {
+					if (parts.length != 5) return encodeText(msg);
+					payload.write(STROKE);
+					writeUnsigned(payload, Long.parseLong(parts[1]));
+					writeSigned(payload, Integer.parseInt(parts[2]));
+					writeSigned(payload, Integer.parseInt(parts[3]));
+					writeColor(payload, Integer.parseInt(parts[4]));
+				}
+				case "append" -> {
+					if (parts.length < 4 || parts.length % 2 != 0) return encodeText(msg);
+					payload.write(APPEND);
+					writeUnsigned(payload, Long.parseLong(parts[1]));
+					writeUnsigned(payload, (parts.length - 2) / 2);
+					for (int i = 2; i < parts.length; i++) writeSigned(payload, Integer.parseInt(parts[i]));
+				}
+				case "finish" -> {
+					if (parts.length != 2) return encodeText(msg);
+					payload.write(FINISH);
+					writeUnsigned(payload, Long.parseLong(parts[1]));
+				}
+				default -> {
+					return encodeText(msg);
+				}
+			}
+		}
+		catch (NumberFormatException e) {
+			return encodeText(msg);		// e.g. an id that isn't a number
+		}
+		return frame(payload);
+	}
+
+	/**
+	 * Fills a command from a frame's payload (positioned at the opcode); never throws, as whatever the client
+	 * sent has to end up in the command: a frame that is empty, cut short or garbled is INVALID
+	 */
+	public static void decode(ByteBuffer frame, SketchCommand cmd) {
+		cmd.clear();
+		byte op = -1;
+		try {
+			op = frame.get();
+			long opId = 0;
+			if (op == OP) {
+				opId = readId(frame);
+				op = frame.get();
+			}
+			if (op == TEXT) {
+				cmd.parse(frame);
+				if (opId != 0) cmd.opId = opId;
+				return;
+			}
+			cmd.opId = opId;
+			switch (op) {
+				case ADD -> {
+					int kind = frame.get();
+					cmd.kind = kind > 0 && kind < KINDS.length ? KINDS[kind] : null;
+					cmd.x1 = readSigned(frame); cmd.y1 = readSigned(frame);
+					cmd.x2 = readSigned(frame); cmd.y2 = readSigned(frame);
+					cmd.rgb = frame.getInt();
+					if (frame.hasRemaining()) cmd.id = readId(frame);
+					if (cmd.kind != null) cmd.op = SketchCommand.Op.ADD;
+				}
+				case MOVE -> {
+					cmd.id = readId(frame);
+					cmd.dx = readSigned(frame); cmd.dy = readSigned(frame);
+					cmd.op = SketchCommand.Op.MOVE;
+				}
+				case RECOLOR -> {
+					cmd.id = readId(frame);
+					cmd.rgb = frame.getInt();
+					cmd.op = SketchCommand.Op.RECOLOR;
+				}
+				case DELETE -> {
+					cmd.id = readId(frame);
+					cmd.op = SketchCommand.Op.DELETE;
+				}
+				case STROKE -> {
+					cmd.id = readId(frame);
+					cmd.x1 = readSigned(frame); cmd.y1 = readSigned(frame);
+					cmd.rgb = frame.getInt();
+					cmd.op = SketchCommand.Op.STROKE;
+				}
+				case APPEND -> {
+					cmd.id = readId(frame);
+					long n = readUnsigned(frame);
+					if (n < 1 || n > frame.remaining()) throw new IllegalArgumentException("bad point count");
+					for (int i = 0; i < n; i++) cmd.addPoint(readSigned(frame), readSigned(frame));
+					cmd.op = SketchCommand.Op.APPEND;
+				}
+				case FINISH -> {
+					cmd.id = readId(frame);
+					cmd.op = SketchCommand.Op.FINISH;
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			cmd.op = SketchCommand.Op.INVALID;		// empty, truncated or garbled frame
+			cmd.line = "frame " + op;
+		}
+	}
+
+	/**
+	 * The text message a frame's payload (positioned at the opcode) stands for, or null if it is cut short or garbled
+	 */
+	public static String toText(ByteBuffer frame) {
+		try {
+			return text(frame);
+		}
+		catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static String text(ByteBuffer frame) {
+		byte op = frame.get();
+		return switch (op) {
+			case OP -> "op " + readUnsigned(frame) + " " + text(frame);
+			case ADD -> {
+				int kindByte = frame.get();
+				if (kindByte < 1 || kindByte >= KINDS.length) throw new IllegalArgumentException("bad kind");
+				String kind = KINDS[kindByte];
+				String msg = "add " + kind + " " + readSigned(frame) + " " + readSigned(frame) + " "
+						+ readSigned(frame) + " " + readSigned(frame) + " " + frame.getInt();
+				yield frame.hasRemaining() ? msg + " " + readUnsigned(frame) : msg;
+			}
+			case MOVE -> "move " + readUnsigned(frame) + " " + readSigned(frame) + " " + readSigned(frame);
+			case RECOLOR -> "recolor " + readUnsigned(frame) + " " + frame.getInt();
+			case DELETE -> "delete " + readUnsigned(frame);
+			case STROKE -> "stroke " + readUnsigned(frame) + " " + readSigned(frame) + " " + readSigned(frame) + " " + frame.getInt();
+			case APPEND -> {
+				StringBuilder msg = new StringBuilder("append ").append(readUnsigned(frame));
+				for (long n = 2 * readUnsigned(frame); n > 0; n--) msg.append(' ').append(readSigned(frame));
+				yield msg.toString();
+			}
+			case FINISH -> "finish " + readUnsigned(frame);
+			default -> StandardCharsets.UTF_8.decode(frame).toString();
+		};
+	}
+
+	/**
+	 * Reads one frame's payload from a stream into buf (or, if it doesn't fit, a bigger buffer that replaces it),
+	 * and returns that buffer flipped to the payload; null at the end of the stream
+	 */
+	public static ByteBuffer readFrame(InputStream in, ByteBuffer buf) throws IOException {
+		long length = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.read();
+			if (b < 0) return null;
+			if (shift > 28) throw new IOException("bad frame length");
+			length |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) break;
+		}
+		checkLength(length);
+		if (length > buf.capacity()) buf = ByteBuffer.allocate((int) length);
+		buf.clear();
+		int n = in.readNBytes(buf.array(), 0, (int) length);
+		if (n < length) throw new EOFException();
+		return buf.limit(n);
+	}
+
+	/**
+	 * Reads one text line from a stream that may switch to frames afterwards (so nothing past the
+	 * newline may be consumed, unlike a BufferedReader) into buf (or a bigger buffer that replaces it),
+	 * and returns that buffer flipped to the line, without its line ending; null at the end of the stream
+	 */
+	public static ByteBuffer readLine(InputStream in, ByteBuffer buf) throws IOException {
+		buf.clear();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				if (buf.position() == 0) return null;
+				break;
+			}
+			if (!buf.hasRemaining()) {
+				buf = ByteBuffer.allocate(buf.capacity() * 2).put(buf.flip());
+			}
+			buf.put((byte) b);
+		}
+		if (buf.position() > 0 && buf.get(buf.position() - 1) == '\r') buf.position(buf.position() - 1);
+		return buf.flip();
+	}
+
+	/**
+	 * If the buffer (between position and limit) starts with a whole frame, moves the position to its payload
+	 * and returns the payload's length; otherwise returns -1 and leaves the position alone
+	 * @throws IOException if what is there can't be the start of a frame (a length of nothing, or too long)
+	 */
+	public static int nextFrame(ByteBuffer buf) throws IOException {
+		int start = buf.position();
+		long length = 0;
+		for (int shift = 0; ; shift += 7) {
+			if (!buf.hasRemaining()) {
+				buf.position(start);
+				return -1;
+			}
+			if (shift > 28) throw new IOException("bad frame length");
+			byte b = buf.get();
+			length |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) break;
+		}
+		checkLength(length);
+		if (buf.remaining() < length) {
+			buf.position(start);
+			return -1;
+		}
+		return (int) length;
+	}
+
+	// every frame has at least its opcode, and none is longer than a reader accepts
+	private static void checkLength(long length) throws IOException {
+		if (length < 1) throw new IOException("empty frame");
+		if (length > MAX_FRAME) throw new IOException("frame too long");
+	}
+
+	private static ByteBuffer encodeText(String msg) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(msg.length() + 1);
+		payload.write(TEXT);
+		payload.writeBytes(msg.getBytes(StandardCharsets.UTF_8));
+		return frame(payload);
+	}
+
+	private static ByteBuffer frame(ByteArrayOutputStream payload) {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 5);
+		writeUnsigned(frame, payload.size());
+		frame.writeBytes(payload.toByteArray());
+		return ByteBuffer.wrap(frame.toByteArray()).asReadOnlyBuffer();
+	}
+
+	private static int kindOf(String kind) {
+		for (int i = 1; i < KINDS.length; i++) {
+			if (KINDS[i].equals(kind)) return i;
+		}
+		return 0;
+	}
+
+	// Varints: 7 bits at a time, low bits first, high bit set on all but the last byte
+
+	private static void writeUnsigned(ByteArrayOutputStream out, long value) {
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readUnsigned(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; ; shift += 7) {
+			if (shift > 63) throw new IllegalArgumentException("varint too long");
+			byte b = in.get();
+			if (shift == 63 && (b & 0x7e) != 0) throw new IllegalArgumentException("varint too long");	// past 64 bits
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+	}
+
+	// an id (or op id): like the text parser, anything past Long.MAX_VALUE isn't one
+	private static long readId(ByteBuffer in) {
+		long value = readUnsigned(in);
+		if (value < 0) throw new IllegalArgumentException("bad id");
+		return value;
+	}
+
+	// Zigzag maps small negative numbers to small unsigned ones (0, -1, 1, -2 ... to 0, 1, 2, 3 ...)
+
+	private static void writeSigned(ByteArrayOutputStream out, int value) {
+		writeUnsigned(out, ((value << 1) ^ (value >> 31)) & 0xffffffffL);
+	}
+
+	private static int readSigned(ByteBuffer in) {
+		int n = (int) readUnsigned(in);
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static void writeColor(ByteArrayOutputStream out, int argb) {
+		out.write(argb >>> 24);
+		out.write(argb >>> 16);
+		out.write(argb >>> 8);
+		out.write(argb);
+	}
+}
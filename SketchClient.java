@@ -0,0 +1,47 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One connected editor, as seen by the SketchServer when broadcasting.
+ * Implemented by the thread-per-client SketchServerCommunicator and by the
+ * selector-based connections of SketchNioServer.
+ *
+ * @co-author aral cay
+ */
+public interface SketchClient {
+	/**
+	 * Queues an encoded message line for the client; must not block on the network.
+	 * The buffer may be shared with other clients, so it is only ever read through a duplicate().
+	 */
+	void send(ByteBuffer line);
+
+	/**
+	 * Queues a snapshot for the client, to be encoded a chunk at a time as it is written out
+	 * (so it takes one place in the outbox, in order with the messages around it)
+	 */
+	void send(SnapshotStream snapshot);
+
+	/**
+	 * Whether the client has switched to SketchBinaryProtocol frames (so is sent frames rather than lines)
+	 */
+	boolean isBinary();
+
+	/**
+	 * From now on the client is sent frames (sequencer thread only, so it falls at one point in the broadcast)
+	 */
+	void useBinary();
+
+	/**
+	 * Queues a message line meant for just this client (as a frame, if it has switched)
+	 */
+	default void send(String msg) {
+		send(isBinary() ? SketchBinaryProtocol.encode(msg) : encode(msg));
+	}
+
+	/**
+	 * Encodes a message once, newline included, as a read-only buffer that any number of clients can share
+	 */
+	static ByteBuffer encode(String msg) {
+		return ByteBuffer.wrap((msg + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,227 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One slot of the SketchSequencer's ring: a client message parsed by the I/O thread that read it,
+ * waiting for the sequencer thread to apply it. Slots are allocated once and reused, and parsing
+ * works on the received bytes in place, so a well-formed message costs no allocation at all.
+ *
+ * @co-author aral cay
+ */
+public class SketchCommand {
+	public enum Op {
+		INVALID, ADD, MOVE, RECOLOR, DELETE, JOIN, SYNC, RESUME, LEAVE, BINARY,
+		STROKE, APPEND, FINISH,		// a freehand stroke, sent point by point as it is drawn
+		BEGIN, END, ACK,	// what a server says to its clients, heard by a node from its relay
+		OPEN				// a new room's recovery from its log (queued by the server, not sent by anyone)
+	}
+
+	public Op op;					// what to do
+	public SketchClient client;		// who it came from
+	public SketchRoom room;			// the room it is for
+	public String line;				// the message as received, only kept if it didn't make sense (to report it)
+	public String kind;				// for ADD: ellipse, rectangle or segment
+	public long id;					// for MOVE, RECOLOR and DELETE: the shape; for ADD: its id, if given (else 0); for BEGIN: the shape count;
+									// for STROKE, APPEND and FINISH: the stroke (a client's own number for it, the server's shape id)
+	public int x1, y1, x2, y2;		// for ADD: the corners / endpoints; for STROKE, x1 y1: the first point
+	public int[] points = new int[64];	// for APPEND: each point's dx dy from the one before, reused (grown as needed)
+	public int count;				// for APPEND: how many points
+	public int dx, dy;				// for MOVE
+	public int rgb;					// for ADD, RECOLOR and STROKE
+	public long opId;				// the client's number for the operation, if it gave one (else 0), so a resend is spotted; for ACK, the one acknowledged
+	public long clientId;			// for SYNC and RESUME: who the client is, across connections
+	public long runId, seq;			// for RESUME: the server run and last operation the client saw; for BEGIN, seq: the snapshot's operation
+	public String roomName;			// for SYNC and RESUME: the room the client wants, if it named one (else null)
+	public boolean upstream;		// from the room's relay (so already in the order every node applies it in)
+
+	// the line being parsed and how far we are through it
+	private ByteBuffer src;
+	private int at, end;
+
+	/**
+	 * Fills the slot from a client message; op is INVALID if the message doesn't make sense
+	 */
+	public void parse(String msg) {
+		parse(ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Fills the slot from a text line (the bytes between position and limit, without the newline),
+	 * in one pass and without moving the buffer's position; op is INVALID if the message doesn't make sense
+	 */
+	public void parse(ByteBuffer msg) {
+		clear();
+		src = msg;
+		at = msg.position();
+		end = msg.limit();
+		try {
+			if (word("op")) opId = nextId();		// "op <n> <operation>"
+			if (word("add")) {
+				kind = nextKind();
+				x1 = nextInt(); y1 = nextInt();
+				x2 = nextInt(); y2 = nextInt();
+				rgb = nextInt();
+				if (at < end) id = nextId();		// clients leave it off; the server's broadcasts carry it
+				op = Op.ADD;
+			}
+			else if (word("move")) {
+				id = nextId();
+				dx = nextInt(); dy = nextInt();
+				op = Op.MOVE;
+			}
+			else if (word("recolor")) {
+				id = nextId();
+				rgb = nextInt();
+				op = Op.RECOLOR;
+			}
+			else if (word("delete")) {
+				id = nextId();
+				op = Op.DELETE;
+			}
+			else if (word("stroke")) {
+				id = nextId();
+				x1 = nextInt(); y1 = nextInt();
+				rgb = nextInt();
+				op = Op.STROKE;
+			}
+			else if (word("append")) {
+				id = nextId();
+				while (at < end) addPoint(nextInt(), nextInt());
+				if (count > 0) op = Op.APPEND;
+			}
+			else if (word("finish")) {
+				id = nextId();
+				op = Op.FINISH;
+			}
+			else if (word("binary") && at == end) {
+				op = Op.BINARY;		// the client switches to SketchBinaryProtocol frames
+			}
+			else if (word("sync")) {
+				clientId = nextId();
+				if (at < end) roomName = nextName();
+				op = Op.SYNC;		// join, with the whole sketch
+			}
+			else if (word("resume")) {
+				clientId = nextId();
+				runId = nextId(); seq = nextId();
+				if (at < end) roomName = nextName();
+				op = Op.RESUME;		// join, with just what was missed since seq if possible
+			}
+			else if (word("sketch")) {
+				if (word("begin")) {
+					id = nextId();		// the shape count
+					seq = nextId();
+					op = Op.BEGIN;
+				}
+				else if (word("end") && at == end) {
+					op = Op.END;
+				}
+			}
+			else if (word("ack")) {
+				opId = nextId();
+				op = Op.ACK;
+			}
+		}
+		catch (NumberFormatException e) {
+			op = Op.INVALID;
+		}
+		if (op == Op.INVALID) {
+			line = new String(bytes(msg), StandardCharsets.UTF_8);
+		}
+		src = null;
+	}
+
+	/**
+	 * Empties the slot, so it doesn't keep the last message or client alive
+	 */
+	public void clear() {
+		op = Op.INVALID;
+		client = null;
+		room = null;
+		line = kind = roomName = null;
+		upstream = false;
+		id = opId = clientId = runId = seq = 0;
+		count = 0;
+	}
+
+	/**
+	 * Adds a point (as its offset from the one before) to an APPEND
+	 */
+	public void addPoint(int dx, int dy) {
+		if (2 * count + 2 > points.length) points = Arrays.copyOf(points, points.length * 2);
+		points[2 * count] = dx;
+		points[2 * count + 1] = dy;
+		count++;
+	}
+
+	// Tokens are separated by single spaces; each reader consumes its token and the space after it
+
+	// whether the next token is the word (consumed if so)
+	private boolean word(String word) {
+		int n = word.length();
+		if (end - at < n) return false;
+		for (int i = 0; i < n; i++) {
+			if (src.get(at + i) != word.charAt(i)) return false;
+		}
+		if (at + n < end && src.get(at + n) != ' ') return false;
+		at = Math.min(at + n + 1, end);
+		return true;
+	}
+
+	// one of the shape kinds, as the shared constant string
+	private String nextKind() {
+		if (word("ellipse")) return "ellipse";
+		if (word("rectangle")) return "rectangle";
+		if (word("segment")) return "segment";
+		throw new NumberFormatException();		// not a kind we can make
+	}
+
+	// a room name: letters, digits, '-' and '_' (it names files too), at most 64 of them
+	private String nextName() {
+		int start = at;
+		for (; at < end && src.get(at) != ' '; at++) {
+			byte c = src.get(at);
+			if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_')) {
+				throw new NumberFormatException();
+			}
+		}
+		if (at == start || at - start > 64) throw new NumberFormatException();
+		String name = new String(bytes(src.slice(start, at - start)), StandardCharsets.US_ASCII);
+		if (at < end) at++;		// the space
+		return name;
+	}
+
+	private int nextInt() {
+		long value = nextLong();
+		if (value != (int) value) throw new NumberFormatException();
+		return (int) value;
+	}
+
+	private long nextId() {
+		long value = nextLong();
+		if (value < 0) throw new NumberFormatException();
+		return value;
+	}
+
+	private long nextLong() {
+		boolean negative = at < end && src.get(at) == '-';
+		if (negative) at++;
+		int start = at;
+		long value = 0;
+		for (; at < end && src.get(at) != ' '; at++) {
+			int digit = src.get(at) - '0';
+			if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) throw new NumberFormatException();
+			value = value * 10 + digit;
+		}
+		if (at == start) throw new NumberFormatException();		// missing
+		if (at < end) at++;		// the space
+		return negative ? -value : value;
+	}
+
+	private static byte[] bytes(ByteBuffer msg) {
+		byte[] bytes = new byte[msg.remaining()];
+		msg.get(msg.position(), bytes);
+		return bytes;
+	}
+}
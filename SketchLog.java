@@ -0,0 +1,395 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * The server's write-ahead log: every operation broadcast, appended to a file as its SketchBinaryProtocol frame,
+ * so the sketch can be rebuilt after a restart.
+ *
+ * The sequencer only copies each frame into an in-memory buffer; this thread swaps that buffer for an empty one,
+ * writes the lot with one call, and syncs it to disk according to the durability chosen, so one fsync covers
+ * every operation that arrived while the last one was under way (group commit). Broadcasts never wait for the
+ * disk; a client's acknowledgement does (see whenDurable), so an editor only forgets an operation once it is safe.
+ *
+ * So that a restart costs the sketch's size rather than its history, the log is kept in numbered segments
+ * ("file.0", "file.1" ...) next to a snapshot ("file.snapshot"): the shapes as of the start of some segment, in
+ * the same frames. Once enough has been logged since the last one, the sequencer starts a new segment and takes
+ * a (copy-on-write) snapshot of the sketch at that same point; another thread writes it out, swaps it in whole,
+ * and deletes the segments it replaces. Recovery loads the snapshot and replays only the segments after it.
+ *
+ * @co-author aral cay
+ */
+public class SketchLog extends Thread {
+	private static final int BUFFER = 1 << 20;				// bytes appended between writes, before the buffer grows
+	private static final int MAX_PENDING = 64 << 20;		// bytes the sequencer may get ahead of the disk before it waits
+	private static final long SNAPSHOT_MIN = 100_000;		// operations logged before a snapshot is worth taking
+	private static final int SNAPSHOT_MAGIC = 0x534b5331;	// "SKS1", at the start of a snapshot file
+
+	public enum Durability {
+		ALWAYS,		// synced after every write, so nothing acknowledged is lost even if the machine goes down
+		INTERVAL,	// synced every interval ms at most; a crash loses up to that much
+		OS			// written, but synced whenever the OS sees fit; only a process crash is survived
+	}
+
+	private final Path base;					// the segments and snapshot are named after it
+	private final Durability durability;
+	private final long interval;				// ns between syncs in INTERVAL mode
+	private FileChannel channel;				// the segment being appended to (this thread only, once started)
+
+	private final Object lock = new Object();	// guards the fields below
+	private ByteBuffer filling = ByteBuffer.allocate(BUFFER);		// being appended to by the sequencer
+	private ByteBuffer draining = ByteBuffer.allocate(BUFFER);		// being written out by this thread
+	private long appended = 0;					// operations appended so far
+	private long durable = 0;					// operations as safe as the durability makes them
+	private boolean failed = false;				// the file can't be written; appends are dropped
+	private int rotateAt = -1;					// where in filling the next segment starts, if one has been asked for
+	private long segment = 0;					// the segment this thread is writing
+	private final ArrayDeque<Long> waitingFor = new ArrayDeque<Long>();		// for each waiting task, what it waits for
+	private final ArrayDeque<Runnable> waiting = new ArrayDeque<Runnable>();
+
+	// sequencer thread only
+	private long nextSegment;					// the number the next segment will get
+	private long sinceSnapshot = 0;				// operations logged after the last snapshot
+	private volatile boolean snapshotting = false;		// a snapshot is being written out
+
+	/**
+	 * Nothing is read or written until recover() and start(); interval is only used in INTERVAL mode
+	 */
+	public SketchLog(Path base, Durability durability, int interval) {
+		super("sketch-log");
+		this.base = base;
+		this.durability = durability;
+		this.interval = interval * 1_000_000L;
+		setDaemon(true);
+	}
+
+	/**
+	 * Reads back what is on disk, handing apply each operation in order as a parsed command (the snapshot's
+	 * shapes as adds, then the operations logged after it), and opens the last segment to append to; a partly
+	 * written or garbled tail (the process or machine died while appending it) is cut off at the first frame that
+	 * can't be read, and everything before it recovered, so later appends follow a whole one
+	 * @return the shape id the snapshot says to go on from (0 if there was none)
+	 */
+	public long recover(Consumer<SketchCommand> apply) throws IOException {
+		long from = 0, nextID = 0, shapes = 0, ops = 0;
+		Path snapshot = file("snapshot");
+		if (Files.exists(snapshot)) {
+			try (FileChannel in = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+				ByteBuffer header = ByteBuffer.allocate(24);
+				while (header.hasRemaining() && in.read(header) > 0) { }
+				header.flip();
+				if (header.remaining() < 24 || header.getInt() != SNAPSHOT_MAGIC) throw new IOException("not a sketch snapshot: " + snapshot);
+				from = header.getLong();
+				nextID = header.getLong();
+				int count = header.getInt();		// frames
+				shapes = readFrames(in, apply);
+				if (shapes != count) throw new IOException("snapshot has " + shapes + " of its " + count + " frames");
+			}
+		}
+
+		// the segments the snapshot doesn't cover, oldest first (any it does are left over from before a crash)
+		long last = from;
+		for (long n : segments()) {
+			if (n < from) {
+				Files.delete(file(Long.toString(n)));
+				continue;
+			}
+			try (FileChannel in = FileChannel.open(file(Long.toString(n)), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				ops += readFrames(in, apply);
+				if (in.position() < in.size()) {
+					System.err.println("log: dropping " + (in.size() - in.position()) + " bytes after the last whole operation in segment " + n);
+					in.truncate(in.position());
+				}
+			}
+			last = n;
+		}
+		if (shapes + ops > 0) System.out.println("recovered " + shapes + " shapes (or parts of strokes) from the snapshot and " + ops + " logged operations");
+
+		segment = last;
+		nextSegment = last + 1;
+		sinceSnapshot = ops;
+		channel = FileChannel.open(file(Long.toString(last)), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		return nextID;
+	}
+
+	/**
+	 * Queues an operation's frame to be logged (sequencer thread only); only waits if the disk has fallen far behind
+	 */
+	public void append(ByteBuffer frame) {
+		synchronized (lock) {
+			if (failed) return;
+			while (filling.position() > MAX_PENDING) {
+				try {
+					lock.wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (failed) return;
+			}
+			if (filling.remaining() < frame.remaining()) {
+				filling = ByteBuffer.allocate(Math.max(filling.capacity() * 2, filling.position() + frame.remaining()))
+						.put(filling.flip());
+			}
+			filling.put(frame.duplicate());
+			if (filling.position() == frame.remaining()) lock.notify();		// the first since the last write
+			appended++;
+		}
+		sinceSnapshot++;
+	}
+
+	/**
+	 * Whether enough has been logged since the last snapshot (more than the sketch itself: shapes) that
+	 * replaying it would cost more than loading a new one (sequencer thread only)
+	 */
+	public boolean snapshotDue(int shapes) {
+		return !snapshotting && sinceSnapshot > Math.max(SNAPSHOT_MIN, 2L * shapes);
+	}
+
+	/**
+	 * Starts a new segment after everything appended so far, and has the sketch as it is at that point
+	 * written out in the background to replace the segments before it (sequencer thread only, and only
+	 * at a point where the sketch holds exactly what has been logged)
+	 * @param nextID the shape id to go on from after a restart
+	 */
+	public void snapshot(Sketch.Snapshot shapes, long nextID) {
+		synchronized (lock) {
+			if (failed || rotateAt >= 0) return;
+			rotateAt = filling.position();
+			lock.notify();
+		}
+		long from = nextSegment++;
+		sinceSnapshot = 0;
+		snapshotting = true;
+		Thread writer = new Thread(() -> {
+			try {
+				writeSnapshot(shapes, from, nextID);
+			}
+			catch (IOException | InterruptedException e) {
+				// the older segments stay, so the last snapshot and everything since still make the sketch
+				System.err.println("snapshot failed: " + e);
+			}
+			finally {
+				snapshotting = false;
+			}
+		}, "sketch-snapshot");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Runs the task (on this thread, or at once if there is nothing to wait for) once everything appended
+	 * so far is as safe as the durability makes it; never, if the log has failed
+	 */
+	public void whenDurable(Runnable task) {
+		synchronized (lock) {
+			if (failed) return;
+			if (durable < appended) {
+				waitingFor.add(appended);
+				waiting.add(task);
+				return;
+			}
+		}
+		task.run();
+	}
+
+	/**
+	 * Writer loop: takes whatever has been appended, writes it, and syncs when the durability calls for it
+	 */
+	public void run() {
+		long written = 0, lastSync = System.nanoTime();
+		try {
+			while (true) {
+				long batch;
+				int rotate;
+				synchronized (lock) {
+					while (filling.position() == 0 && rotateAt < 0) {
+						if (written > durable && durability == Durability.INTERVAL) {
+							long wait = lastSync + interval - System.nanoTime();
+							if (wait <= 0) break;
+							lock.wait(wait / 1_000_000, (int) (wait % 1_000_000));
+						}
+						else {
+							lock.wait();
+						}
+					}
+					ByteBuffer full = filling;
+					filling = draining;
+					draining = full;
+					batch = appended;
+					rotate = rotateAt;
+					rotateAt = -1;
+					lock.notifyAll();		// room again, if the sequencer was waiting for it
+				}
+
+				draining.flip();
+				if (rotate >= 0) {
+					// the rest of the old segment, synced (its operations may be waiting to be acknowledged), then the new one
+					int limit = draining.limit();
+					draining.limit(rotate);
+					while (draining.hasRemaining()) channel.write(draining);
+					draining.limit(limit);
+					channel.force(false);
+					channel.close();
+					channel = FileChannel.open(file(Long.toString(segment + 1)), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+					synchronized (lock) {
+						segment++;
+						lock.notifyAll();		// the snapshot writer may go ahead and delete the old one
+					}
+				}
+				while (draining.hasRemaining()) channel.write(draining);
+				if (draining.capacity() > BUFFER) draining = ByteBuffer.allocate(BUFFER);	// back to the usual size
+				else draining.clear();
+				written = batch;
+
+				long now = System.nanoTime();
+				if (durability == Durability.ALWAYS || (durability == Durability.INTERVAL && now - lastSync >= interval)) {
+					channel.force(false);
+					lastSync = now;
+					done(written);
+				}
+				else if (durability == Durability.OS) {
+					done(written);
+				}
+			}
+		}
+		catch (IOException | InterruptedException e) {
+			// nothing more can be made durable; broadcasts carry on, but no more acknowledgements go out
+			System.err.println("log failed, no longer logging: " + e);
+			synchronized (lock) {
+				failed = true;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	// marks everything up to count durable, and runs the tasks waiting for that
+	private void done(long count) {
+		ArrayDeque<Runnable> ready = new ArrayDeque<Runnable>();
+		synchronized (lock) {
+			durable = count;
+			while (!waitingFor.isEmpty() && waitingFor.peek() <= count) {
+				waitingFor.poll();
+				ready.add(waiting.poll());
+			}
+		}
+		for (Runnable task : ready) {
+			try {
+				task.run();
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Writes the shapes as the snapshot of everything before segment from: a header (magic, from, next id,
+	 * frame count) then an add frame per shape, bottom to top (a stroke's frames for a freehand stroke); synced, then renamed over the old snapshot in one step,
+	 * so there is always a whole one. The segments it covers go once the writer has moved past them.
+	 */
+	private void writeSnapshot(Sketch.Snapshot shapes, long from, long nextID) throws IOException, InterruptedException {
+		Path temp = file("snapshot.tmp");
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+			buf.putInt(SNAPSHOT_MAGIC).putLong(from).putLong(nextID).putInt(0);
+			int frames = 0;
+			for (Shape shape : shapes) {
+				for (String msg : shape instanceof Polyline p ? p.messages() : List.of("add " + shape)) {
+					ByteBuffer frame = SketchBinaryProtocol.encode(msg);
+					if (buf.remaining() < frame.remaining()) {
+						buf.flip();
+						while (buf.hasRemaining()) out.write(buf);
+						buf.clear();
+						if (buf.remaining() < frame.remaining()) buf = ByteBuffer.allocate(frame.remaining());
+					}
+					buf.put(frame);
+					frames++;
+				}
+			}
+			buf.flip();
+			while (buf.hasRemaining()) out.write(buf);
+			out.write(ByteBuffer.allocate(4).putInt(0, frames), 20);	// the count in the header, now it is known
+			out.force(true);
+		}
+		Files.move(temp, file("snapshot"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		synchronized (lock) {
+			while (segment < from && !failed) lock.wait();
+		}
+		for (long n : segments()) {
+			if (n < from) Files.delete(file(Long.toString(n)));
+		}
+	}
+
+	// reads frames from the channel's position to the last whole, readable one (leaving the position there),
+	// handing each to apply; the first frame that can't be read (say, bytes that were being written, or zeroes,
+	// when the machine went down) is taken as the end, as nothing after it can be trusted to line up
+	private static long readFrames(FileChannel in, Consumer<SketchCommand> apply) throws IOException {
+		long count = 0, base = in.position();		// base: where in the file buf starts
+		SketchCommand cmd = new SketchCommand();
+		ByteBuffer buf = ByteBuffer.allocate(BUFFER);
+		boolean torn = false;
+		while (!torn) {
+			boolean end = in.read(buf) < 0;
+			buf.flip();
+			while (true) {
+				int start = buf.position(), length;
+				try {
+					length = SketchBinaryProtocol.nextFrame(buf);
+				}
+				catch (IOException e) {
+					buf.position(start);
+					length = -1;
+					torn = true;
+				}
+				if (length < 0) break;
+				ByteBuffer frame = buf.slice(buf.position(), length);
+				SketchBinaryProtocol.decode(frame, cmd);
+				if (cmd.op == SketchCommand.Op.INVALID && frame.get(0) != SketchBinaryProtocol.TEXT) {
+					buf.position(start);		// garbled (a text frame that doesn't parse was logged as such, and is passed over)
+					torn = true;
+					break;
+				}
+				buf.position(buf.position() + length);
+				apply.accept(cmd);
+				count++;
+			}
+			if (end || torn) break;
+			base += buf.position();
+			if (buf.position() == 0 && buf.limit() == buf.capacity()) {
+				buf = ByteBuffer.allocate(buf.capacity() * 2).put(buf);		// a frame bigger than the buffer
+			}
+			else {
+				buf.compact();
+			}
+		}
+		in.position(base + buf.position());
+		cmd.clear();
+		return count;
+	}
+
+	// the numbers of the segments on disk, in order
+	private long[] segments() throws IOException {
+		Path dir = base.toAbsolutePath().getParent();
+		String prefix = base.getFileName() + ".";
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.map(path -> path.getFileName().toString())
+					.filter(name -> name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9]+"))
+					.mapToLong(name -> Long.parseLong(name.substring(prefix.length())))
+					.sorted().toArray();
+		}
+	}
+
+	// base.suffix
+	private Path file(String suffix) {
+		return base.resolveSibling(base.getFileName() + "." + suffix);
+	}
+}
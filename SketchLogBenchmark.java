@@ -0,0 +1,59 @@
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Drags a few shapes around for a run of moves, logging each to a SketchLog in each durability mode as the
+ * sequencer would (snapshots included), and reports how many operations a second reach the disk (timed until
+ * the last is durable), then how much a restart has to read back, and how fast; that should depend on the
+ * number of shapes, not the number of moves.
+ *     java SketchLogBenchmark [directory] [operations]
+ *
+ * @co-author aral cay
+ */
+public class SketchLogBenchmark {
+	private static final int SHAPES = 64;
+
+	public static void main(String[] args) throws Exception {
+		Path dir = Paths.get(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir"));
+		int ops = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+		// a move per shape, encoded once, as broadcast frames are
+		ByteBuffer[] moves = new ByteBuffer[SHAPES];
+		for (int i = 0; i < SHAPES; i++) moves[i] = SketchBinaryProtocol.encode("move " + (i + 1) + " 3 -2");
+
+		for (SketchLog.Durability durability : SketchLog.Durability.values()) {
+			Path base = Files.createTempDirectory(dir, "sketch").resolve("sketch.log");
+			SketchLog log = new SketchLog(base, durability, 10);
+			log.recover(cmd -> { });
+			log.start();
+
+			Sketch sketch = new Sketch();
+			for (int i = 1; i <= SHAPES; i++) {
+				Shape shape = new Rectangle(i, i, i + 20, i + 20, Color.black, Long.toString(i));
+				sketch.addShape(shape);
+				log.append(SketchBinaryProtocol.encode("add " + shape));
+			}
+
+			CountDownLatch done = new CountDownLatch(1);
+			long start = System.nanoTime();
+			for (int i = 0; i < ops; i++) {
+				sketch.moveShape(i % SHAPES + 1, 3, -2);
+				log.append(moves[i % SHAPES]);
+				if (i % 1024 == 1023 && log.snapshotDue(sketch.size())) log.snapshot(sketch.snapshot(), SHAPES + 1);
+			}
+			log.whenDurable(done::countDown);
+			done.await();
+			long elapsed = System.nanoTime() - start;
+			Thread.sleep(200);		// let a last snapshot finish
+
+			start = System.nanoTime();
+			long[] read = {0};
+			new SketchLog(base, durability, 10).recover(cmd -> read[0]++);
+			long recover = System.nanoTime() - start;
+			System.out.printf("%-8s %,12.0f ops/s appended and durable; restart reads %,d of %,d operations in %.1f ms%n",
+					durability, ops * 1e9 / elapsed, read[0], ops + SHAPES, recover / 1e6);
+		}
+	}
+}
@@ -0,0 +1,529 @@
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Applies the clients' add/move/recolor/delete/stroke commands to a room's sketch and broadcasts the results;
+ * shared by every connection in the room regardless of how it is served. Only ever called from the room's
+ * SketchSequencer thread, so nothing here needs a lock.
+ *
+ * Moves are applied at once but broadcast in conflated form: the deltas for each shape are summed until the
+ * sequencer runs out of queued commands (or something other than a move comes along), then go out as one
+ * move per shape. A drag then costs a broadcast per shape per batch, not one per mouse event.
+ *
+ * A freehand stroke is sent while it is drawn: "stroke <key> <x> <y> <rgb>" starts it (key: the client's own
+ * number for it), "append <key> <dx> <dy> ..." adds the points drawn since, and "finish <key>" ends it. The server
+ * gives the stroke a shape id as it starts, and broadcasts the same three messages with the id in place of the key,
+ * so everyone sees it grow.
+ *
+ * A client joins with "sync <client>" (the whole sketch), "resume <client> <run> <seq>" (just the operations
+ * it missed, if the server still has them; else the whole sketch), either of them ending with the name of the
+ * room to join if not the default one; or by just waiting, or sending anything else (the whole default room).
+ * Operations sent as "op <n> ..." are applied once even if the client sends them again after reconnecting,
+ * and acknowledged with "ack <n>" at the end of the batch (once the server's log has them, if it keeps one).
+ *
+ * In a room relayed from another server (see SketchRelayLink), the clients' operations are sent up rather than
+ * applied, and acknowledged once the relay has acknowledged them; what comes down from the relay is applied and
+ * broadcast like the room's own operations would have been (with the relay's shape ids), and when the relay
+ * sends its whole sketch (on joining it, or rejoining too late to resume) every client here is sent it again.
+ *
+ * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012; revised Winter 2014 to separate SketchServerCommunicator
+ * @author Tim Pierson Dartmouth CS 10, provided for Winter 2024
+ * @co-author aral cay
+ */
+public class SketchMessageHandler {
+	private SketchRoom room;				// whose sketch is updated
+	private long nextID = 1;				// id for the next new shape
+	private ColorCache colors = new ColorCache();	// so a recolor doesn't make a new Color each time
+
+	// moves applied but not yet broadcast: per shape (in the order first moved), the summed delta
+	private LongIntMap pendingIndex = new LongIntMap();		// shape id -> index in the arrays below
+	private long[] pendingIDs = new long[64];
+	private int[] pendingDx = new int[64], pendingDy = new int[64];
+	private int pendingCount = 0;
+
+	// what is known about each client that has joined, by connection, and (for those that said who they are) by id
+	private Map<SketchClient, Session> sessions = new HashMap<SketchClient, Session>();
+	private Map<Long, Session> sessionsByID = new HashMap<Long, Session>();
+	private Map<Long, Session> gone = new LinkedHashMap<Long, Session>() {	// of those, the ones not connected, in the order they left
+		protected boolean removeEldestEntry(Map.Entry<Long, Session> eldest) {
+			if (size() <= MAX_SESSIONS) return false;
+			sessionsByID.remove(eldest.getKey());		// forget the longest gone
+			return true;
+		}
+	};
+	private List<Session> ackDue = new ArrayList<Session>();	// clients with operations to acknowledge this batch
+	private ArrayDeque<Forwarded> forwarded = new ArrayDeque<Forwarded>();	// sent up to the relay, not yet acknowledged by it
+	private boolean resyncing = false;		// the relay's whole sketch is coming down
+	private long nextUpKey = 1;				// key for the next stroke sent up to the relay (one numbering for all our clients)
+
+	private static final int MAX_SESSIONS = 10_000;		// ids of clients gone remembered, to spot resent operations
+
+	// one client, possibly over several connections
+	private static class Session {
+		SketchClient client;		// its current connection
+		long clientID;				// its own id, 0 if it didn't give one
+		long lastOp = 0;			// the last of its numbered operations applied (or sent up to the relay)
+		long ackOp = 0;				// the last of them that can be acknowledged
+		boolean ackDue = false;		// ackOp is yet to be acknowledged
+		Map<Long, Long> strokes;	// its strokes being drawn: its key -> the shape id (or, in a relayed room, the key sent up)
+	}
+
+	// a client's numbered operation, sent up to the relay as the relay link's operation upOp
+	private record Forwarded(long upOp, Session session, long opId) { }
+
+	public SketchMessageHandler(SketchRoom room) {
+		this.room = room;
+	}
+
+	/**
+	 * takes a command from a client and handles it
+	 */
+	public void apply(SketchCommand cmd){
+		// anything else is ordered after the moves before it, as everyone must see them
+		if (cmd.op != SketchCommand.Op.MOVE) flushMoves();
+		if (cmd.upstream){
+			applyUpstream(cmd);
+			return;
+		}
+		if (cmd.op == SketchCommand.Op.OPEN){
+			room.recoverLog();
+			return;
+		}
+
+		Session session = sessions.get(cmd.client);
+		switch (cmd.op) {
+			case JOIN, SYNC, RESUME, LEAVE -> { }
+			default -> {
+				// a client that speaks before joining joins first
+				if (session == null) session = join(cmd.client, null);
+				if (cmd.opId != 0 && !firstTime(session, cmd.opId)) return;
+			}
+		}
+
+		// in a relayed room, changes go up to the relay to be put in order, and are applied when they come back
+		SketchRelayLink link = room.getLink();
+		if (link != null) switch (cmd.op) {
+			case ADD, MOVE, RECOLOR, DELETE, STROKE, APPEND, FINISH -> {
+				if (!upKey(session, cmd)) {
+					// a stroke it has no key for (e.g. dropped since) goes nowhere, but is acknowledged all the same,
+					// after whatever was sent up before it, so the client doesn't keep sending it again
+					if (cmd.opId != 0) {
+						if (forwarded.isEmpty()) {
+							session.ackOp = Math.max(session.ackOp, cmd.opId);
+							dueAck(session);
+						}
+						else forwarded.add(new Forwarded(link.lastForwarded(), session, cmd.opId));
+					}
+					return;
+				}
+				long upOp = link.forward(lineOf(cmd));
+				if (cmd.opId != 0) forwarded.add(new Forwarded(upOp, session, cmd.opId));
+				return;
+			}
+			default -> { }
+		}
+
+		//switch cases suggested by Java
+		switch (cmd.op) {
+			case ADD -> handleShapeAdd(cmd);
+			case MOVE -> handleShapeMove(cmd);
+			case RECOLOR -> handleShapeRecolor(cmd);
+			case DELETE -> handleShapeDelete(cmd);
+			case STROKE -> handleStroke(session, cmd);
+			case APPEND -> handleAppend(session, cmd);
+			case FINISH -> handleFinish(session, cmd);
+			case JOIN, SYNC, RESUME -> {
+				if (session == null) join(cmd.client, cmd);
+				else if (cmd.op != SketchCommand.Op.JOIN) System.err.println("already joined: " + cmd.op);
+			}
+			case BINARY -> {
+				// acknowledged in text; everything after it is frames
+				cmd.client.send("binary ok");
+				cmd.client.useBinary();
+			}
+			case LEAVE -> {
+				room.removeCommunicator(cmd.client);
+				if (session != null) {
+					sessions.remove(cmd.client);
+					if (session.client == cmd.client) {		// unless it has already reconnected
+						session.client = null;
+						if (session.clientID != 0) gone.put(session.clientID, session);
+					}
+				}
+			}
+			case INVALID -> System.err.println("Invalid msg: " + cmd.line);
+		}
+	}
+
+	/**
+	 * creates the requested shape, gives it an id and handles shape message
+	 */
+	private void handleShapeAdd(SketchCommand cmd){
+		Shape newShape = newShape(cmd);
+
+		//if new shape is not null
+		if (newShape != null){
+			//new shape id is changed to
+			long id = setNewShapeID(newShape);
+
+			//add the new shape and write it on console
+			room.getSketch().addShape(id, newShape);
+
+			room.broadcast("add " + newShape.toString());
+		}
+	}
+
+	/**
+	 * Applies what the relay sent, in its order (applying a change as if it were the room's own, but keeping the
+	 * relay's id for a new shape, so the same id means the same shape on every node)
+	 */
+	private void applyUpstream(SketchCommand cmd){
+		switch (cmd.op) {
+			case ADD -> {
+				Shape shape = newShape(cmd);
+				if (shape == null) {
+					System.err.println("Invalid msg from relay: add " + cmd.kind);		// a kind this server can't make
+					return;
+				}
+				shape.setID(Long.toString(cmd.id));
+				room.getSketch().addShape(cmd.id, shape);
+				if (!resyncing) room.broadcast("add " + shape);	// else it goes out with the rest of the sketch
+			}
+			case MOVE -> handleShapeMove(cmd);
+			case RECOLOR -> handleShapeRecolor(cmd);
+			case DELETE -> handleShapeDelete(cmd);
+			case STROKE -> {
+				startStroke(cmd.id, cmd);
+				if (!resyncing) room.broadcast(strokeLine(cmd.id, cmd));
+			}
+			case APPEND -> {
+				if (room.getSketch().extendStroke(cmd.id, cmd.points, cmd.count) && !resyncing) room.broadcast(appendLine(cmd.id, cmd));
+			}
+			case FINISH -> {
+				if (room.getSketch().finishStroke(cmd.id) && !resyncing) room.broadcast("finish " + cmd.id);
+			}
+			case BEGIN -> {
+				// the relay's sketch replaces ours
+				room.getSketch().clear();
+				resyncing = true;
+			}
+			case END -> {
+				// and everyone here starts again from it
+				resyncing = false;
+				room.forgetReplay();
+				Sketch.Snapshot shapes = room.getSketch().snapshot();
+				for (SketchClient client : sessions.keySet()){
+					client.send(new SnapshotStream(shapes, room.getSeq(), client.isBinary()));
+				}
+			}
+			case ACK -> {
+				// the relay has applied these, so the clients that sent them can forget them
+				while (!forwarded.isEmpty() && forwarded.peek().upOp() <= cmd.opId){
+					Forwarded op = forwarded.poll();
+					op.session().ackOp = Math.max(op.session().ackOp, op.opId());
+					dueAck(op.session());
+				}
+			}
+			default -> System.err.println("Invalid msg from relay: " + cmd.line);
+		}
+	}
+
+	/**
+	 * the text line for a change a client asked for, to send it on
+	 */
+	private static String lineOf(SketchCommand cmd){
+		return switch (cmd.op) {
+			case ADD -> "add " + cmd.kind + " " + cmd.x1 + " " + cmd.y1 + " " + cmd.x2 + " " + cmd.y2 + " " + cmd.rgb;
+			case MOVE -> "move " + cmd.id + " " + cmd.dx + " " + cmd.dy;
+			case RECOLOR -> "recolor " + cmd.id + " " + cmd.rgb;
+			case STROKE -> strokeLine(cmd.id, cmd);
+			case APPEND -> appendLine(cmd.id, cmd);
+			case FINISH -> "finish " + cmd.id;
+			default -> "delete " + cmd.id;
+		};
+	}
+
+	/**
+	 * Swaps a client's key for a stroke op for the one it goes up to the relay with, so strokes from different
+	 * clients here don't get mixed up there (just one client to it); false if it is for a stroke we don't know
+	 */
+	private boolean upKey(Session session, SketchCommand cmd){
+		Long key = switch (cmd.op) {
+			case STROKE -> {
+				long up = nextUpKey++;
+				strokes(session).put(cmd.id, up);
+				yield up;
+			}
+			case APPEND -> strokes(session).get(cmd.id);
+			case FINISH -> strokes(session).remove(cmd.id);
+			default -> cmd.id;
+		};
+		if (key == null) return false;
+		cmd.id = key;
+		return true;
+	}
+
+	private static Map<Long, Long> strokes(Session session){
+		if (session.strokes == null) session.strokes = new HashMap<Long, Long>();
+		return session.strokes;
+	}
+
+	/**
+	 * starts a stroke from a client, with a new id, and passes it on
+	 */
+	private void handleStroke(Session session, SketchCommand cmd){
+		long id = startStroke(nextID++, cmd);
+		strokes(session).put(cmd.id, id);
+		room.broadcast(strokeLine(id, cmd));
+	}
+
+	/**
+	 * adds the points to the client's stroke, and passes them on if it is still there
+	 */
+	private void handleAppend(Session session, SketchCommand cmd){
+		Long id = strokes(session).get(cmd.id);
+		if (id != null && room.getSketch().extendStroke(id, cmd.points, cmd.count)){
+			room.broadcast(appendLine(id, cmd));
+		}
+	}
+
+	/**
+	 * ends the client's stroke, and passes that on
+	 */
+	private void handleFinish(Session session, SketchCommand cmd){
+		Long id = strokes(session).remove(cmd.id);
+		if (id != null && room.getSketch().finishStroke(id)){
+			room.broadcast("finish " + id);
+		}
+	}
+
+	/**
+	 * adds a stroke, so far just its first point, to the sketch with the id
+	 */
+	private long startStroke(long id, SketchCommand cmd){
+		Polyline stroke = new Polyline(new Point(cmd.x1, cmd.y1), colors.get(cmd.rgb));
+		stroke.setID(Long.toString(id));
+		room.getSketch().addShape(id, stroke);
+		return id;
+	}
+
+	private static String strokeLine(long id, SketchCommand cmd){
+		return "stroke " + id + " " + cmd.x1 + " " + cmd.y1 + " " + cmd.rgb;
+	}
+
+	private static String appendLine(long id, SketchCommand cmd){
+		StringBuilder line = new StringBuilder("append ").append(id);
+		for (int i = 0; i < 2 * cmd.count; i++) line.append(' ').append(cmd.points[i]);
+		return line.toString();
+	}
+
+	/**
+	 * the shape an add command describes, without an id yet
+	 */
+	private Shape newShape(SketchCommand cmd){
+		Color color = colors.get(cmd.rgb);
+		//switch cases suggested by Java
+		return switch (cmd.kind) {
+			case "ellipse" -> new Ellipse(cmd.x1, cmd.y1, cmd.x2, cmd.y2, color);
+			case "rectangle" -> new Rectangle(cmd.x1, cmd.y1, cmd.x2, cmd.y2, color);
+			case "segment" -> new Segment(cmd.x1, cmd.y1, cmd.x2, cmd.y2, color);
+			default -> null;
+		};
+	}
+
+	/**
+	 * Re-applies an operation read back from the server's log, before anyone connects: the same change to the
+	 * sketch as when it was broadcast (an add keeping the id it was given then), but nothing is sent
+	 */
+	public void recover(SketchCommand cmd){
+		Sketch sketch = room.getSketch();
+		switch (cmd.op) {
+			case ADD -> {
+				nextID = Math.max(nextID, cmd.id + 1);		// new shapes mustn't reuse a logged id
+				Shape shape = newShape(cmd);
+				if (shape == null) {
+					System.err.println("log: skipping an add of a kind this server can't make: " + cmd.kind);
+					return;
+				}
+				shape.setID(Long.toString(cmd.id));
+				sketch.addShape(cmd.id, shape);
+			}
+			case MOVE -> sketch.moveShape(cmd.id, cmd.dx, cmd.dy);
+			case RECOLOR -> sketch.recolorShape(cmd.id, colors.get(cmd.rgb));
+			case DELETE -> sketch.deleteShape(cmd.id);
+			case STROKE -> {
+				startStroke(cmd.id, cmd);
+				nextID = Math.max(nextID, cmd.id + 1);
+			}
+			case APPEND -> sketch.extendStroke(cmd.id, cmd.points, cmd.count);
+			case FINISH -> sketch.finishStroke(cmd.id);
+			default -> System.err.println("log: skipping unreadable operation " + cmd.line);
+		}
+	}
+
+	/**
+	 * Makes sure new shapes get ids from next on (the log's snapshot says where it had got to, since the
+	 * shapes with the highest ids may since have been deleted)
+	 */
+	public void reserveIDs(long next){
+		nextID = Math.max(nextID, next);
+	}
+
+	/**
+	 * Called by the sequencer when it has caught up with the queue, or after a long run of commands:
+	 * broadcasts the moves held back so far
+	 */
+	public void endBatch(){
+		flushMoves();
+		SketchLog log = room.getLog();
+		// the sketch now holds exactly what has been logged, so it is a good point to snapshot it
+		if (log != null && log.snapshotDue(room.getSketch().size())) log.snapshot(room.getSketch().snapshot(), nextID);
+		for (Session session : ackDue){
+			SketchClient client = session.client;
+			if (client != null && session.ackOp > 0){
+				// once the operations are as safe as the log makes them (so a client never forgets one that could be lost)
+				String ack = "ack " + session.ackOp;
+				if (log == null) client.send(ack);
+				else {
+					ByteBuffer msg = client.isBinary() ? SketchBinaryProtocol.encode(ack) : SketchClient.encode(ack);
+					log.whenDurable(() -> client.send(msg));
+				}
+			}
+			session.ackDue = false;
+		}
+		ackDue.clear();
+	}
+
+	/**
+	 * Says hello, brings the client up to date (cmd: its sync or resume, or null if it didn't send one),
+	 * then has it sent everything from here on
+	 */
+	private Session join(SketchClient client, SketchCommand cmd){
+		Session session = null;
+		long clientID = cmd == null ? 0 : cmd.clientId;
+		if (clientID != 0){
+			session = sessionsByID.get(clientID);	// back again
+			gone.remove(clientID);
+		}
+		if (session == null){
+			session = new Session();
+			session.clientID = clientID;
+			if (clientID != 0) sessionsByID.put(clientID, session);
+		}
+		session.client = client;
+		sessions.put(client, session);
+
+		// Say what we speak, tell the client the current state of the world, then keep it up to date
+		client.send("hello " + SketchBinaryProtocol.VERSION + " " + room.getRunId());
+		ByteBuffer missed = null;
+		if (cmd != null && cmd.op == SketchCommand.Op.RESUME && cmd.runId == room.getRunId()){
+			missed = room.replayFrom(cmd.seq, client.isBinary());
+		}
+		if (missed != null){
+			// just what it missed, numbered on from where it got to
+			client.send("resume ok " + cmd.seq);
+			client.send(missed);
+		}
+		else {
+			// the state is a snapshot as of now, streamed by the client's own writer
+			client.send(new SnapshotStream(room.getSketch().snapshot(), room.getSeq(), client.isBinary()));
+		}
+		room.addCommunicator(client);
+		return session;
+	}
+
+	/**
+	 * Whether the client's numbered operation is new (and if so, notes that it has been seen and, unless it
+	 * has to go through a relay first, is to be acknowledged); a resent one is only acknowledged again
+	 */
+	private boolean firstTime(Session session, long opId){
+		boolean first = opId > session.lastOp;
+		if (first){
+			session.lastOp = opId;
+			if (room.getLink() != null) return true;	// acknowledged when the relay has it
+			session.ackOp = opId;
+		}
+		dueAck(session);
+		return first;
+	}
+
+	/**
+	 * has the client sent an ack at the end of the batch
+	 */
+	private void dueAck(Session session){
+		if (!session.ackDue){
+			session.ackDue = true;
+			ackDue.add(session);
+		}
+	}
+
+	/**
+	 * Handles the shape move function
+	 */
+	private void handleShapeMove(SketchCommand cmd){
+		//move the shape with that id, and pass it on (summed with its other moves this batch) if it was there
+		if (room.getSketch().moveShape(cmd.id, cmd.dx, cmd.dy)){
+			int i = pendingIndex.get(cmd.id);
+			if (i == LongIntMap.MISSING){
+				if (pendingCount == pendingIDs.length){
+					pendingIDs = Arrays.copyOf(pendingIDs, pendingCount * 2);
+					pendingDx = Arrays.copyOf(pendingDx, pendingCount * 2);
+					pendingDy = Arrays.copyOf(pendingDy, pendingCount * 2);
+				}
+				i = pendingCount++;
+				pendingIndex.put(cmd.id, i);
+				pendingIDs[i] = cmd.id;
+				pendingDx[i] = pendingDy[i] = 0;
+			}
+			pendingDx[i] += cmd.dx;
+			pendingDy[i] += cmd.dy;
+		}
+	}
+
+	/**
+	 * Broadcasts one move per shape moved since the last flush (none for a shape that ended up where it was)
+	 */
+	private void flushMoves(){
+		for (int i = 0; i < pendingCount; i++){
+			pendingIndex.remove(pendingIDs[i]);
+			if (pendingDx[i] != 0 || pendingDy[i] != 0){
+				room.broadcast("move " + pendingIDs[i] + " " + pendingDx[i] + " " + pendingDy[i]);
+			}
+		}
+		pendingCount = 0;
+	}
+
+	/**
+	 * handles the recolor function of the editor
+	 */
+	private void handleShapeRecolor(SketchCommand cmd){
+		//set the color of the shape with that id to the new one, and pass it on if it was there
+		if (room.getSketch().recolorShape(cmd.id, colors.get(cmd.rgb))){
+			room.broadcast("recolor " + cmd.id + " " + cmd.rgb);
+		}
+	}
+
+	/**
+	 * this method handle the deleting function of the editor
+	 */
+	private void handleShapeDelete(SketchCommand cmd){
+		//delete it by id, and pass it on if it was there
+		if (room.getSketch().deleteShape(cmd.id) != null){
+			room.broadcast("delete " + cmd.id);
+		}
+	}
+
+	/**
+	 * sets the new shape id: the next number, which keeps ids short and lets binary clients send them as varints
+	 * (in a relayed room the relay numbers the shapes, so every node's ids agree)
+	 * @return the id, as the number the sketch keys the shape by
+	 */
+	private long setNewShapeID(Shape shape){
+		//set the shape of the id to id
+		long id = nextID++;
+		shape.setID(Long.toString(id));
+		return id;
+	}
+}
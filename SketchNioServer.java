@@ -0,0 +1,364 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking front end for the SketchServer: instead of a SketchServerCommunicator thread per editor,
+ * a small fixed set of event loops (each a thread with its own Selector) reads and writes for all of them,
+ * speaking the same add/move/recolor/delete line protocol
+ *
+ * @co-author aral cay
+ */
+public class SketchNioServer {
+	private static final int MAX_LINE = 1 << 20;		// longest message accepted from a client
+	private static final int OUTBOX_CAPACITY = 4096;	// messages a client may fall behind by before it is dropped
+
+	private ServerSocketChannel listen;		// for accepting connections
+	private SketchServer server;			// the sketch, the clients and the broadcast
+	private EventLoop[] loops;				// each serves its share of the connections
+	private int next = 0;					// loop to hand the next connection to
+
+	public SketchNioServer(int port, int threads) throws IOException {
+		this(port, threads, 0);
+	}
+
+	/**
+	 * tick: ms per flush round under load (see SketchServer.setTick); 0 flushes as soon as there is output
+	 */
+	public SketchNioServer(int port, int threads, int tick) throws IOException {
+		listen = ServerSocketChannel.open();
+		listen.bind(new InetSocketAddress(port));
+		server = new SketchServer();
+		server.setTick(tick);
+		loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++) {
+			loops[i] = new EventLoop("sketch-loop-" + i);
+			loops[i].setDaemon(true);
+			loops[i].start();
+		}
+	}
+
+	public SketchServer getServer() {
+		return server;
+	}
+
+	public int getPort() {
+		return listen.socket().getLocalPort();
+	}
+
+	/**
+	 * Accepts connections and deals them out round-robin to the event loops
+	 */
+	public void getConnections() throws IOException {
+		System.out.println("server ready for connections (" + loops.length + " event loops)");
+		while (true) {
+			loops[next].register(listen.accept());
+			next = (next + 1) % loops.length;
+		}
+	}
+
+	/**
+	 * One selector thread; everything about its connections' channels happens on this thread
+	 */
+	private class EventLoop extends Thread {
+		private Selector selector;
+		private Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();	// waiting to be registered
+		private Queue<Connection> flushes = new ConcurrentLinkedQueue<Connection>();		// have new output queued
+		private Queue<Connection> joining = new ArrayDeque<Connection>();					// yet to say how they are joining
+		private volatile boolean roundPending = false;	// tick mode: flushes are queued, the loop will get to them
+		private long lastRound;							// tick mode: when the queued flushes were last done
+
+		public EventLoop(String name) throws IOException {
+			super(name);
+			selector = Selector.open();
+		}
+
+		/**
+		 * Hands a newly accepted channel to this loop (called from the accepting thread)
+		 */
+		public void register(SocketChannel channel) {
+			accepted.add(channel);
+			selector.wakeup();
+		}
+
+		/**
+		 * Asks this loop to write out a connection's queued messages (called from any thread)
+		 */
+		public void scheduleFlush(Connection conn) {
+			flushes.add(conn);
+			if (!roundPending) selector.wakeup();	// else the loop is already due to flush at the end of the tick
+		}
+
+		public void run() {
+			long tick = server.getTick() * 1_000_000L;
+			lastRound = System.nanoTime() - tick;
+			while (true) {
+				try {
+					// in tick mode, queued flushes wait until a tick after the last round (no wait after a quiet tick);
+					// and a client that has said nothing is joined once its grace is up
+					long now = System.nanoTime(), wait = Long.MAX_VALUE;
+					if (tick > 0 && !flushes.isEmpty()) {
+						roundPending = true;
+						wait = lastRound + tick - now;
+					}
+					if (!joining.isEmpty()) wait = Math.min(wait, joining.peek().joinBy - now);
+					if (wait == Long.MAX_VALUE) selector.select();
+					else if (wait > 0) selector.select(Math.max(1, wait / 1_000_000));
+					else selector.selectNow();
+
+					SocketChannel channel;
+					while ((channel = accepted.poll()) != null) open(channel);
+					Connection conn;
+					if (tick == 0 || System.nanoTime() - lastRound >= tick) {
+						if (roundPending || !flushes.isEmpty()) lastRound = System.nanoTime();
+						roundPending = false;
+						while ((conn = flushes.poll()) != null) conn.flush();
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						conn = (Connection) key.attachment();
+						if (key.isValid() && key.isReadable()) conn.read();
+						if (key.isValid() && key.isWritable()) conn.flush();
+					}
+
+					while ((conn = joining.peek()) != null && (conn.room != null || !conn.key.isValid() || System.nanoTime() >= conn.joinBy)) {
+						joining.poll();
+						if (conn.room == null && conn.key.isValid()) {
+							conn.room = server.getRoom();
+							conn.room.join(conn);
+						}
+					}
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * Starts serving a channel: registers it for reading, and gives the client a moment to say how it is joining
+		 * (sync/resume) before it is just sent the current state of the world
+		 */
+		private void open(SocketChannel channel) {
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				Connection conn = new Connection(channel, this);
+				conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+				System.out.println("someone connected");
+				conn.joinBy = System.nanoTime() + SketchServer.JOIN_GRACE * 1_000_000L;
+				joining.add(conn);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				try { channel.close(); } catch (IOException ignored) { }
+			}
+		}
+	}
+
+	/**
+	 * The server's view of one editor: a partial-line input buffer and a queue of encoded output
+	 */
+	private class Connection implements SketchClient {
+		private SocketChannel channel;
+		private EventLoop loop;					// the only thread touching the channel
+		private SelectionKey key;
+		private ByteBuffer in = ByteBuffer.allocate(4096);								// bytes read but not yet a whole line
+		private Queue<Object> out = new ConcurrentLinkedQueue<Object>();				// messages (ByteBuffer) and snapshots (SnapshotStream) not yet written
+		private ByteBuffer streamChunk;			// current chunk of the snapshot at the head of out, being written
+		private AtomicInteger queued = new AtomicInteger(0);							// size of out
+		private AtomicBoolean flushScheduled = new AtomicBoolean(false);				// already in loop's flushes
+		private ByteBuffer[] batch = new ByteBuffer[64];								// one gathering write's worth of out
+		private boolean binaryIn = false;		// client sends frames (loop thread only)
+		private boolean binaryOut = false;		// client is sent frames (sequencer thread only)
+		private SketchRoom room;				// where its messages go, chosen by its first line or by its silence (loop thread only)
+		private long joinBy;					// when it is joined anyway if it hasn't (loop thread only)
+
+		public Connection(SocketChannel channel, EventLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+		}
+
+		/**
+		 * Queues the message and lets the loop write it; never blocks the caller,
+		 * but a client too far behind is disconnected
+		 */
+		public void send(ByteBuffer line) {
+			queue(line.duplicate());		// own position over the shared bytes
+		}
+
+		public void send(SnapshotStream snapshot) {
+			queue(snapshot);
+		}
+
+		private void queue(Object item) {
+			int backlog = queued.incrementAndGet();
+			if (backlog > OUTBOX_CAPACITY) {
+				if (backlog == OUTBOX_CAPACITY + 1) {
+					System.err.println("client fell too far behind, disconnecting");
+					loop.scheduleFlush(this);	// the loop finds it over capacity and closes it
+				}
+				return;
+			}
+			out.add(item);
+			if (flushScheduled.compareAndSet(false, true)) loop.scheduleFlush(this);
+		}
+
+		public boolean isBinary() {
+			return binaryOut;
+		}
+
+		public void useBinary() {
+			binaryOut = true;
+		}
+
+		/**
+		 * Reads what is available and handles each complete line (or frame, once the client has switched)
+		 */
+		public void read() {
+			try {
+				if (channel.read(in) < 0) {
+					close();
+					return;
+				}
+				in.flip();
+				while (binaryIn ? readFrame() : readLine()) { }
+				in.compact();
+
+				// a message longer than the buffer: grow up to the limit, then give up on the client
+				if (!in.hasRemaining()) {
+					if (in.capacity() >= MAX_LINE) {
+						System.err.println("message too long, disconnecting");
+						close();
+						return;
+					}
+					ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+					in.flip();
+					bigger.put(in);
+					in = bigger;
+				}
+			}
+			catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Handles the line at the front of in, if there is a whole one
+		 */
+		private boolean readLine() {
+			int start = in.position(), limit = in.limit();
+			for (int i = start; i < limit; i++) {
+				if (in.get(i) == '\n') {
+					int end = (i > start && in.get(i - 1) == '\r') ? i - 1 : i;
+					in.limit(end);		// parsed in place
+					if (room == null && (room = server.roomFor(in)) == null) {
+						System.err.println("no more rooms, turning a client away");
+						close();
+						return false;
+					}
+					binaryIn = room.publishLine(this, in) == SketchCommand.Op.BINARY;	// frames from here on
+					in.limit(limit).position(i + 1);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Handles the frame at the front of in, if there is a whole one
+		 */
+		private boolean readFrame() throws IOException {
+			int length = SketchBinaryProtocol.nextFrame(in);
+			if (length < 0) return false;
+			int limit = in.limit(), next = in.position() + length;
+			in.limit(next);		// decoded in place, right away, before in is reused
+			room.publishFrame(this, in);
+			in.limit(limit).position(next);
+			return true;
+		}
+
+		/**
+		 * Writes as much queued output as the socket takes, many messages per gathering write;
+		 * waits for OP_WRITE for the rest
+		 */
+		public void flush() {
+			if (!key.isValid()) return;
+			if (queued.get() > OUTBOX_CAPACITY) {
+				close();
+				return;
+			}
+			flushScheduled.set(false);
+			try {
+				while (true) {
+					if (out.peek() instanceof SnapshotStream snapshot) {
+						// a snapshot, encoded a chunk at a time as the socket takes it
+						if (streamChunk == null) streamChunk = snapshot.next();
+						if (streamChunk == null) {
+							out.poll();
+							queued.decrementAndGet();
+							continue;
+						}
+						channel.write(streamChunk);
+						if (streamChunk.hasRemaining()) {
+							key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+							return;
+						}
+						streamChunk = null;
+						continue;
+					}
+
+					// gather up to a batch of queued messages, up to any snapshot (still queued until fully written)
+					int n = 0;
+					for (Object item : out) {
+						if (!(item instanceof ByteBuffer line)) break;
+						batch[n++] = line;
+						if (n == batch.length) break;
+					}
+					if (n == 0) break;
+
+					channel.write(batch, 0, n);
+					int written = 0;
+					while (written < n && !batch[written].hasRemaining()) {
+						out.poll();
+						written++;
+					}
+					queued.addAndGet(-written);
+					Arrays.fill(batch, 0, n, null);
+					if (written < n) {
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Clean up -- note that also remove self from server's list so it doesn't broadcast here
+		 */
+		public void close() {
+			if (!key.isValid()) return;
+			if (room != null) room.leave(this);
+			key.cancel();
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
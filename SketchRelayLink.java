@@ -0,0 +1,226 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A node's connection, for one of its rooms, to the relay: another SketchServer, whose room of the same name
+ * every node serving it joins as a client. The node sends its clients' operations up (numbered, like an editor's,
+ * so a reconnect neither loses nor repeats one) instead of applying them, and applies what comes back down, in
+ * the relay's order, before passing it on to its own clients; so every node's copy of the room goes through the
+ * same operations in the same order, and each node only has to fan out to its own clients.
+ *
+ * This thread reads from the relay (and reconnects when the connection drops, resuming where it got to);
+ * another writes, so the room's shard never waits on the relay. If the relay stays away (or falls behind) for
+ * MAX_UNACKED operations, those are given up on and the link starts over with the relay's whole sketch.
+ *
+ * @co-author aral cay
+ */
+public class SketchRelayLink extends Thread {
+	private static final int MAX_UNACKED = 65_536;	// operations held for the relay before giving up on them
+
+	private final SketchRoom room;				// the node's room this is the link for
+	private final String host;					// where the relay is
+	private final int port;
+	private final long clientID = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);	// who the node is, to the relay
+
+	// reader thread only
+	private InputStream in;
+	private long runID = 0;						// the relay run our operation count is in (0 until joined)
+	private long seq = 0;						// the number of the last of the relay's operations passed to the room
+	private boolean inSnapshot = false;			// the adds coming down are the relay's state, not operations
+
+	// guarded by this
+	private Socket sock;
+	private OutputStream out;					// null while reconnecting
+	private long nextOpID = 0;					// our number for the last operation sent up
+	private long written = 0;					// the last of them the writer has written on this connection
+	private boolean resync = false;				// operations were given up on: join afresh, not resume
+	private final TreeMap<Long, String> unacked = new TreeMap<Long, String>();	// sent up, not yet applied by the relay
+
+	public SketchRelayLink(SketchRoom room, String host, int port) {
+		super("sketch-relay-" + room.getName());
+		this.room = room;
+		this.host = host;
+		this.port = port;
+		setDaemon(true);
+	}
+
+	/**
+	 * Sends an operation up to the relay (never waits on the network)
+	 * @return the number it was sent as, which the relay's acks refer to
+	 */
+	public synchronized long forward(String msg) {
+		nextOpID++;
+		if (unacked.size() == MAX_UNACKED) {
+			// the relay is too far behind to catch up with: drop what it hasn't got, this included, and start over
+			System.err.println("relay " + host + ":" + port + " is " + MAX_UNACKED + " operations behind, resyncing");
+			unacked.clear();
+			resync = true;
+			close();
+			return nextOpID;
+		}
+		unacked.put(nextOpID, "op " + nextOpID + " " + msg);
+		notifyAll();
+		return nextOpID;
+	}
+
+	/**
+	 * The number the last operation was sent up as (0 if none yet)
+	 */
+	public synchronized long lastForwarded() {
+		return nextOpID;
+	}
+
+	/**
+	 * Connects and joins the relay's room (resuming where we got to, if we had joined and gave nothing up since);
+	 * the writer then sends again whatever the relay hasn't acknowledged
+	 */
+	private void connect() throws IOException {
+		Socket s = new Socket(host, port);
+		s.setTcpNoDelay(true);
+		in = new BufferedInputStream(s.getInputStream());
+		OutputStream o = new BufferedOutputStream(s.getOutputStream());
+		synchronized (this) {
+			if (resync) runID = 0;
+			resync = false;
+		}
+		String where = room.getName().isEmpty() ? "" : " " + room.getName();
+		write(o, runID == 0 ? "sync " + clientID + where : "resume " + clientID + " " + runID + " " + seq + where);
+		o.flush();
+		synchronized (this) {
+			sock = s;
+			out = o;
+			written = 0;		// everything in unacked goes again
+			notifyAll();
+		}
+		System.out.println("room " + room.getName() + " relayed through " + host + ":" + port);
+	}
+
+	private synchronized void disconnect() {
+		close();
+	}
+
+	// drops the connection (the reader finds out, and reconnects); under the lock
+	private void close() {
+		out = null;
+		try {
+			if (sock != null) sock.close();
+		}
+		catch (IOException e) {
+			// going anyway
+		}
+		sock = null;
+	}
+
+	/**
+	 * Keeps the link up: connects, passes on what the relay says until the connection drops, and tries again
+	 */
+	public void run() {
+		Thread writer = new Thread(this::writeMessages, getName() + "-writer");
+		writer.setDaemon(true);
+		writer.start();
+		int backoff = 250;		// ms before trying again, doubling up to a few seconds while the relay stays away
+		while (true) {
+			try {
+				connect();
+				backoff = 250;
+				listen();
+			}
+			catch (IOException e) {
+				System.err.println("lost relay " + host + ":" + port + ": " + e.getMessage());
+			}
+			disconnect();
+			try {
+				Thread.sleep(backoff);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			backoff = Math.min(backoff * 2, 4000);
+		}
+	}
+
+	/**
+	 * Hands the room each line from the relay, in order, keeping count of the operations for resuming
+	 */
+	private void listen() throws IOException {
+		ByteBuffer line = ByteBuffer.allocate(256);
+		while ((line = SketchBinaryProtocol.readLine(in, line)) != null) {
+			if (startsWith(line, "hello ")) {
+				runID = Long.parseLong(text(line).split(" ")[2]);
+				continue;
+			}
+			if (startsWith(line, "resume ok")) continue;		// just the operations we missed follow
+
+			SketchCommand.Op op = room.publishUpstream(line);
+			switch (op) {
+				case ADD, MOVE, RECOLOR, DELETE, STROKE, APPEND, FINISH -> {
+					if (!inSnapshot) seq++;
+				}
+				case BEGIN -> {
+					String[] parts = text(line).split(" ");
+					seq = Long.parseLong(parts[3]);
+					inSnapshot = true;
+				}
+				case END -> inSnapshot = false;
+				case ACK -> acknowledged(Long.parseLong(text(line).substring(4)));
+				default -> { }
+			}
+		}
+		throw new EOFException("relay closed the connection");
+	}
+
+	// forgets the operations the relay has applied, so they aren't sent again
+	private synchronized void acknowledged(long opID) {
+		unacked.headMap(opID, true).clear();
+	}
+
+	/**
+	 * Writer loop: sends whatever has been forwarded and not yet written on this connection (all of unacked, just
+	 * after connecting), as many lines per write as have piled up; the network is only touched outside the lock
+	 */
+	private void writeMessages() {
+		List<String> batch = new ArrayList<String>();
+		try {
+			while (true) {
+				OutputStream o;
+				synchronized (this) {
+					while (out == null || unacked.isEmpty() || unacked.lastKey() <= written) wait();
+					o = out;
+					batch.addAll(unacked.tailMap(written, false).values());
+					written = unacked.lastKey();
+				}
+				try {
+					for (String op : batch) write(o, op);
+					o.flush();
+				}
+				catch (IOException e) {
+					// the reader finds out too, and reconnects and resends
+				}
+				batch.clear();
+			}
+		}
+		catch (InterruptedException e) {
+			// done
+		}
+	}
+
+	private static void write(OutputStream o, String msg) throws IOException {
+		o.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static boolean startsWith(ByteBuffer line, String prefix) {
+		if (line.remaining() < prefix.length()) return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (line.get(line.position() + i) != prefix.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private static String text(ByteBuffer line) {
+		return StandardCharsets.UTF_8.decode(line.duplicate()).toString();
+	}
+}
@@ -0,0 +1,217 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * One named sketch on the server and the clients in it: its own shapes, members, operation numbering,
+ * replay and log. Each room is pinned to one of the server's SketchSequencer shards, and only that shard's
+ * thread ever changes it or broadcasts for it, so rooms on different shards share nothing and never wait
+ * on each other.
+ *
+ * On a node of a bigger deployment, the room is instead a replica of the room of the same name on a relay
+ * (see SketchRelayLink): its clients' operations go up to the relay, and the room applies what comes back.
+ *
+ * @co-author aral cay
+ */
+public class SketchRoom {
+	private static final int REPLAY = 4096;				// recent operations kept for reconnecting clients
+
+	private final String name;							// what clients ask for it by ("" for the default room)
+	private final long runId;							// the server run's, which the room's operation numbers are in
+	private final SketchSequencer shard;				// the thread the room belongs to
+	private final Sketch sketch = new Sketch();			// the state of the room's world
+	private final List<SketchClient> comms = new ArrayList<SketchClient>();		// the clients in the room
+	private final SketchMessageHandler handler;			// what the shard applies the room's commands with
+	private SketchLog log;								// where every operation is written, if anywhere
+	private SketchRelayLink link;						// to the relay whose room this is a replica of, if any
+	private long seq = 0;								// operations broadcast so far; the last one's number
+	private long replayFloor = 0;						// no replay from before this (the sketch was replaced then)
+	private final String[] replay = new String[REPLAY];	// the last REPLAY operations, by seq % REPLAY
+	boolean batched = false;							// has commands in the shard's current batch (shard thread only)
+
+	public SketchRoom(String name, long runId, SketchSequencer shard) {
+		this.name = name;
+		this.runId = runId;
+		this.shard = shard;
+		handler = new SketchMessageHandler(this);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Sketch getSketch() {
+		return sketch;
+	}
+
+	public SketchMessageHandler getHandler() {
+		return handler;
+	}
+
+	public long getRunId() {
+		return runId;
+	}
+
+	/**
+	 * Has the room's sketch rebuilt from its log (snapshot and segments named after file), then every operation
+	 * logged to it from there on; to be called before the room is handed any commands. The rebuilding is queued
+	 * as the first thing the room's shard does for it, so whoever opened the room (say, an I/O thread) doesn't
+	 * wait for the disk, and nothing sent to the room is applied before it.
+	 */
+	public void openLog(Path file, SketchLog.Durability durability, int interval) {
+		log = new SketchLog(file, durability, interval);
+		shard.open(this);
+	}
+
+	/**
+	 * Rebuilds the sketch from the log and starts logging (the shard's thread, for what openLog queued);
+	 * if the log can't be read, the room goes on without one
+	 */
+	void recoverLog() {
+		try {
+			handler.reserveIDs(log.recover(handler::recover));
+			log.start();
+		}
+		catch (IOException e) {
+			System.err.println("room " + name + " not logged: " + e);
+			log = null;
+		}
+	}
+
+	/**
+	 * The operation log, or null if the room isn't being logged
+	 */
+	public SketchLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Makes the room a replica of the relay's room of the same name; to be called before the room is handed
+	 * any commands
+	 */
+	public void relayTo(String host, int port) {
+		link = new SketchRelayLink(this, host, port);
+		link.start();
+	}
+
+	/**
+	 * The link to the relay, or null if the room is the authority for its own sketch
+	 */
+	public SketchRelayLink getLink() {
+		return link;
+	}
+
+	// What the clients' I/O threads hand the room, queued on its shard
+
+	/**
+	 * Queues a client's text line for the room
+	 * @return what the line asked for, so the reader can tell when the client switches to frames
+	 */
+	public SketchCommand.Op publishLine(SketchClient client, ByteBuffer line) {
+		return shard.publishLine(this, client, line);
+	}
+
+	/**
+	 * Queues a client's binary frame for the room
+	 */
+	public void publishFrame(SketchClient client, ByteBuffer frame) {
+		shard.publishFrame(this, client, frame);
+	}
+
+	/**
+	 * Queues a line from the room's relay
+	 * @return what it was
+	 */
+	public SketchCommand.Op publishUpstream(ByteBuffer line) {
+		return shard.publishUpstream(this, line);
+	}
+
+	/**
+	 * Queues a client that has said nothing to be joined to the room
+	 */
+	public void join(SketchClient client) {
+		shard.join(this, client);
+	}
+
+	/**
+	 * Queues a disconnected client's removal from the room
+	 */
+	public void leave(SketchClient client) {
+		shard.leave(this, client);
+	}
+
+	// The rest is for the room's shard thread only
+
+	/**
+	 * The number of the last operation broadcast
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * The operations after the one numbered from, encoded together for one client, or null if they are
+	 * not all still kept
+	 */
+	public ByteBuffer replayFrom(long from, boolean binary) {
+		if (from > seq || from < seq - REPLAY || from < replayFloor) return null;
+		ByteArrayOutputStream missed = new ByteArrayOutputStream();
+		for (long s = from + 1; s <= seq; s++) {
+			String msg = replay[(int) (s % REPLAY)];
+			ByteBuffer bytes = binary ? SketchBinaryProtocol.encode(msg) : SketchClient.encode(msg);
+			while (bytes.hasRemaining()) missed.write(bytes.get());
+		}
+		return ByteBuffer.wrap(missed.toByteArray()).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Stops clients resuming from before now, as the sketch has been replaced wholesale rather than
+	 * changed by the operations since
+	 */
+	public void forgetReplay() {
+		replayFloor = seq;
+	}
+
+	/**
+	 * Adds the communicator to the room's broadcast
+	 */
+	public void addCommunicator(SketchClient comm) {
+		comms.add(comm);
+	}
+
+	/**
+	 * Removes the communicator from the room's broadcast
+	 */
+	public void removeCommunicator(SketchClient comm) {
+		comms.remove(comm);
+	}
+
+	/**
+	 * Sends the message to everyone in the room (including the originator);
+	 * only queues it with each client, so a slow client doesn't hold up the rest.
+	 * The message is encoded once per format (text line, and binary frame if anyone uses it)
+	 * and the same bytes are handed to every client.
+	 * Every message broadcast is an operation on the sketch, and is numbered: the clients count them
+	 * from the number they were given when they joined, and a client that reconnects says where it got to.
+	 * With a log, the frame is also queued to be written; that never waits for the disk.
+	 */
+	public void broadcast(String msg) {
+		seq++;
+		replay[(int) (seq % REPLAY)] = msg;
+		ByteBuffer line = SketchClient.encode(msg), frame = null;
+		for (SketchClient comm : comms) {
+			if (comm.isBinary()) {
+				if (frame == null) frame = SketchBinaryProtocol.encode(msg);
+				comm.send(frame);
+			}
+			else {
+				comm.send(line);
+			}
+		}
+		if (log != null) {
+			if (frame == null) frame = SketchBinaryProtocol.encode(msg);
+			log.append(frame);
+		}
+	}
+}
@@ -0,0 +1,212 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single writer for a shard of the server's rooms. The I/O threads parse client messages straight into the
+ * slots of a pre-allocated ring and publish them; this one thread applies them in sequence order, each with
+ * its room's handler, so every change to a room's sketch, and every broadcast, happens in one total order
+ * with no lock on the sketch at all. Rooms on other shards are another thread's, with a ring of their own.
+ *
+ * @co-author aral cay
+ */
+public class SketchSequencer extends Thread {
+	private static final int SIZE = 1 << 13;		// slots in the ring; a power of two
+	private static final int MASK = SIZE - 1;
+	private static final int MAX_BATCH = 1024;		// commands applied before the handler's held-back moves go out anyway
+
+	private final SketchCommand[] slots = new SketchCommand[SIZE];
+	private final AtomicLongArray published = new AtomicLongArray(SIZE);	// sequence number last published in each slot
+	private final AtomicLong claimed = new AtomicLong(0);					// next sequence number to hand a producer
+	private volatile long applied = 0;				// everything before this has been applied; its slots are free again
+	private volatile boolean sleeping = false;		// consumer is parked, waiting for work
+	private int batch = 0;							// commands applied since the last endBatch (consumer only)
+	private List<SketchRoom> batchRooms = new ArrayList<SketchRoom>();		// the rooms they were for (consumer only)
+
+	public SketchSequencer(String name) {
+		super(name);
+		for (int i = 0; i < SIZE; i++) {
+			slots[i] = new SketchCommand();
+			published.set(i, -1);
+		}
+		setDaemon(true);
+	}
+
+	/**
+	 * Parses a client's text line (position to limit) into the next slot and queues it (called from the
+	 * client's I/O thread, which may reuse the buffer as soon as this returns)
+	 * @return what the line asked for, so the reader can tell when the client switches to frames
+	 */
+	public SketchCommand.Op publishLine(SketchRoom room, SketchClient client, ByteBuffer line) {
+		long seq = claim();
+		SketchCommand cmd = slots[(int) seq & MASK];
+		SketchCommand.Op op = SketchCommand.Op.INVALID;
+		try {
+			cmd.parse(line);
+			op = cmd.op;		// the slot is the consumer's once committed
+		}
+		finally {
+			cmd.room = room;
+			cmd.client = client;
+			commit(seq);
+		}
+		return op;
+	}
+
+	/**
+	 * Decodes a binary frame's payload into the next slot and queues it (called from the client's I/O thread,
+	 * which may reuse the buffer as soon as this returns)
+	 */
+	public void publishFrame(SketchRoom room, SketchClient client, ByteBuffer frame) {
+		long seq = claim();
+		SketchCommand cmd = slots[(int) seq & MASK];
+		try {
+			SketchBinaryProtocol.decode(frame, cmd);
+		}
+		finally {
+			cmd.room = room;
+			cmd.client = client;
+			commit(seq);
+		}
+	}
+
+	/**
+	 * Parses a line from a room's relay into the next slot and queues it (called from the relay link's thread)
+	 * @return what the line was
+	 */
+	public SketchCommand.Op publishUpstream(SketchRoom room, ByteBuffer line) {
+		long seq = claim();
+		SketchCommand cmd = slots[(int) seq & MASK];
+		SketchCommand.Op op = SketchCommand.Op.INVALID;
+		try {
+			cmd.parse(line);
+			op = cmd.op;
+		}
+		finally {
+			cmd.room = room;
+			cmd.upstream = true;
+			commit(seq);
+		}
+		return op;
+	}
+
+	/**
+	 * Queues a newly connected client, to be sent the sketch and added to the broadcast
+	 * at one point in the order, so it misses nothing and gets nothing twice
+	 */
+	public void join(SketchRoom room, SketchClient client) {
+		control(SketchCommand.Op.JOIN, room, client);
+	}
+
+	/**
+	 * Queues a new room's recovery from its log, ahead of anything sent to it
+	 */
+	public void open(SketchRoom room) {
+		control(SketchCommand.Op.OPEN, room, null);
+	}
+
+	/**
+	 * Queues a disconnected client's removal from the broadcast
+	 */
+	public void leave(SketchRoom room, SketchClient client) {
+		control(SketchCommand.Op.LEAVE, room, client);
+	}
+
+	private void control(SketchCommand.Op op, SketchRoom room, SketchClient client) {
+		long seq = claim();
+		SketchCommand cmd = slots[(int) seq & MASK];
+		cmd.clear();
+		cmd.op = op;
+		cmd.room = room;
+		cmd.client = client;
+		commit(seq);
+	}
+
+	/**
+	 * Takes the next sequence number, waiting for its slot if the ring is full: spinning at first, then giving
+	 * way, then sleeping in short naps, so a producer held up for long doesn't keep a core (or an event loop's
+	 * share of one) busy doing nothing
+	 */
+	private long claim() {
+		long seq = claimed.getAndIncrement();
+		for (int spins = 0; seq >= applied + SIZE; spins++) {
+			if (spins < 100) Thread.onSpinWait();
+			else if (spins < 200) Thread.yield();
+			else LockSupport.parkNanos(100_000);
+		}
+		return seq;
+	}
+
+	/**
+	 * Makes the filled slot visible to the consumer, and wakes it if need be; every slot claimed must be
+	 * committed, whatever went wrong filling it, or the consumer waits on it for ever and the shard's rooms stop
+	 */
+	private void commit(long seq) {
+		published.set((int) seq & MASK, seq);
+		if (sleeping) LockSupport.unpark(this);
+	}
+
+	/**
+	 * Lets the handlers of the rooms in the batch send what they have been holding back
+	 */
+	private void endBatch() {
+		for (SketchRoom room : batchRooms) {
+			try {
+				room.getHandler().endBatch();
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			room.batched = false;
+		}
+		batchRooms.clear();
+		batch = 0;
+	}
+
+	/**
+	 * Consumer loop: applies commands strictly in sequence order
+	 */
+	public void run() {
+		long next = 0;
+		int idle = 0;
+		while (true) {
+			int slot = (int) next & MASK;
+			if (published.get(slot) == next) {
+				SketchCommand cmd = slots[slot];
+				SketchRoom room = cmd.room;
+				if (!room.batched) {
+					room.batched = true;
+					batchRooms.add(room);
+				}
+				try {
+					room.getHandler().apply(cmd);
+				}
+				catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+				cmd.clear();
+				if (++batch == MAX_BATCH) endBatch();
+				applied = ++next;
+				idle = 0;
+			}
+			else if (batch > 0) {
+				// caught up: the end of a batch
+				endBatch();
+			}
+			else if (idle < 1000) {
+				idle++;
+				Thread.onSpinWait();
+			}
+			else {
+				// nothing for a while: park until a producer commits (recheck after saying so, to not miss it; the
+				// loop checks again after waking, as park may return for no reason)
+				sleeping = true;
+				if (published.get(slot) != next) LockSupport.park(this);
+				sleeping = false;
+			}
+		}
+	}
+}
@@ -1,66 +1,223 @@
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
 
 /**
  * A server to handle sketches: getting requests from the clients,
- * updating the overall state, and passing them on to the clients
+ * updating the overall state, and passing them on to the clients.
+ * Clients pick a SketchRoom when they join (or get the default one); each room is pinned to one of a fixed
+ * number of sequencer shards (one per core), so busy rooms spread over the cores and never contend.
+ * Several servers can share their rooms by each relaying them through another, plain, server (see SketchRelayLink),
+ * which then only has to fan out to the nodes, and each node only to its own clients.
  *
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012; revised Winter 2014 to separate SketchServerCommunicator
  * @author Tim Pierson Dartmouth CS 10, provided for Winter 2024
  */
 public class SketchServer {
+	public static final int JOIN_GRACE = 100;			// ms a new client has to say how it is joining, before it is just sent the sketch
+	public static final int MAX_ROOMS = 1024;			// rooms a server hosts at most, unless told otherwise ("rooms n")
+
 	private ServerSocket listen;						// for accepting connections
-	private ArrayList<SketchServerCommunicator> comms;	// all the connections with clients
-	private Sketch sketch;								// the state of the world
-	
+	private boolean virtualThreads;						// run communicators on virtual rather than platform threads
+	private int tick = 0;								// ms to hold a client's writes so more go together (0: none)
+	private long runId;									// tells this run's operation numbers from another's
+	private SketchSequencer[] shards;					// the threads that change the rooms and broadcast, a share of the rooms each
+	private final AtomicInteger nextShard = new AtomicInteger();		// counts the rooms made, to deal them out over the shards
+	private Map<String, SketchRoom> rooms = new ConcurrentHashMap<String, SketchRoom>();	// by name, made on first use
+	private int maxRooms = MAX_ROOMS;					// no more rooms than this are made (each may have a log and its thread)
+	private final AtomicInteger roomCount = new AtomicInteger();
+	private Path logFile;								// the rooms' logs are named after it (null: no logging)
+	private SketchLog.Durability durability;
+	private int interval;
+	private String relayHost;							// where the relay is, if the rooms are relayed (null: they aren't)
+	private int relayPort;
+
 	public SketchServer(ServerSocket listen) {
+		this(listen, false);
+	}
+
+	public SketchServer(ServerSocket listen, boolean virtualThreads) {
 		this.listen = listen;
-		sketch = new Sketch();
-		comms = new ArrayList<SketchServerCommunicator>();
+		this.virtualThreads = virtualThreads;
+		runId = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+		shards = new SketchSequencer[Runtime.getRuntime().availableProcessors()];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new SketchSequencer("sketch-sequencer-" + i);
+			shards[i].start();
+		}
 	}
 
-	public Sketch getSketch() {
-		return sketch;
+	/**
+	 * Just the shared state, for when connections are accepted elsewhere (e.g., by SketchNioServer)
+	 */
+	public SketchServer() {
+		this(null);
 	}
-	
+
 	/**
-	 * The usual loop of accepting connections and firing off new threads to handle them
+	 * Tick mode: under load, each connection writes at most once per tick, everything queued meanwhile going out
+	 * together in one write; a write after a quiet tick still goes at once, so a lone editor sees no delay.
+	 * 0 (the default) writes as soon as there is anything to write.
 	 */
-	public void getConnections() throws IOException {
-		System.out.println("server ready for connections");
-		while (true) {  // infinite loop to get connections
-			SketchServerCommunicator comm = new SketchServerCommunicator(listen.accept(), this);
-			comm.setDaemon(true);
-			comm.start();
-			addCommunicator(comm);
-		}
+	public void setTick(int millis) {
+		tick = millis;
+	}
+
+	public int getTick() {
+		return tick;
+	}
+
+	public long getRunId() {
+		return runId;
 	}
 
 	/**
-	 * Adds the communicator to the list of current communicators
+	 * Hosts no more than this many rooms; a client asking for a new one after that is turned away
 	 */
-	public synchronized void addCommunicator(SketchServerCommunicator comm) {
-		comms.add(comm);
+	public void setMaxRooms(int max) {
+		maxRooms = max;
 	}
 
 	/**
-	 * Removes the communicator from the list of current communicators
+	 * Keeps every room in files named after file (the default room's named just that, the others with "-room"
+	 * added), recovering the default room now and each other room when it is first used; to be called before
+	 * any connections are taken
 	 */
-	public synchronized void removeCommunicator(SketchServerCommunicator comm) {
-		comms.remove(comm);
+	public void openLog(Path file, SketchLog.Durability durability, int interval) {
+		this.logFile = file;
+		this.durability = durability;
+		this.interval = interval;
+		getRoom();
 	}
 
 	/**
-	 * Sends the message from the one communicator to all (including the originator)
+	 * Makes every room a replica of the relay's room of the same name, joined when the room is first used;
+	 * to be called before any connections are taken (the relay keeps the log, if there is one)
 	 */
-	public synchronized void broadcast(String msg) {
-		for (SketchServerCommunicator comm : comms) {
-			comm.send(msg);
+	public void setRelay(String host, int port) {
+		relayHost = host;
+		relayPort = port;
+	}
+
+	/**
+	 * The room with the name, made (and recovered from its log, or joined to the relay's, if the server does
+	 * either) if it is new; null if it is new and the server already hosts as many rooms as it may (the default
+	 * room is always there). Never waits on the disk or the network: a new room's recovery is queued as the first
+	 * thing its shard does for it, ahead of anything sent to it, and the relay is joined by the link's own thread.
+	 */
+	public SketchRoom getRoom(String name) {
+		return rooms.computeIfAbsent(name, n -> {
+			if (roomCount.incrementAndGet() > maxRooms && !n.isEmpty()) {
+				roomCount.decrementAndGet();
+				return null;		// not made, nor put in the map
+			}
+			SketchRoom room = new SketchRoom(n, runId, shards[Math.floorMod(nextShard.getAndIncrement(), shards.length)]);
+			if (relayHost != null) {
+				room.relayTo(relayHost, relayPort);
+			}
+			else if (logFile != null) {
+				room.openLog(n.isEmpty() ? logFile : logFile.resolveSibling(logFile.getFileName() + "-" + n), durability, interval);
+			}
+			return room;
+		});
+	}
+
+	/**
+	 * The default room, for clients that don't name one
+	 */
+	public SketchRoom getRoom() {
+		return getRoom("");
+	}
+
+	/**
+	 * The room a client's first line (sync or resume, possibly naming a room) puts it in; null if that is a new
+	 * room and there can't be any more
+	 */
+	public SketchRoom roomFor(ByteBuffer line) {
+		SketchCommand cmd = new SketchCommand();
+		cmd.parse(line);
+		return getRoom(cmd.roomName != null ? cmd.roomName : "");
+	}
+
+	/**
+	 * The usual loop of accepting connections and firing off new threads to handle them;
+	 * in virtual-thread mode each communicator's run() is a task on a virtual thread instead
+	 */
+	public void getConnections() throws IOException {
+		System.out.println("server ready for connections" + (virtualThreads ? " (virtual threads)" : ""));
+		ExecutorService executor = virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : null;
+		while (true) {  // infinite loop to get connections
+			SketchServerCommunicator comm = new SketchServerCommunicator(listen.accept(), this);
+			if (executor != null) {
+				executor.execute(comm);
+			}
+			else {
+				comm.setDaemon(true);
+				comm.start();
+			}
 		}
 	}
-	
+
+	/**
+	 * With no arguments, one platform thread per editor; "virtual" gives each editor a virtual thread;
+	 * "nio [threads]" serves all the editors from a few selector threads (default: one per core);
+	 * any of them followed by "tick ms" batches writes per tick, and by "log file" keeps the sketch in files named
+	 * after that across restarts, synced to disk after every write ("sync always", the default), at most every so many ms
+	 * ("sync ms"), or whenever the OS likes ("sync os"); "port n" listens on another port than 4242, and
+	 * "relay host:port" makes this server a node sharing its rooms through the server there; "rooms n" hosts at most
+	 * n rooms (default MAX_ROOMS)
+	 */
 	public static void main(String[] args) throws Exception {
-		new SketchServer(new ServerSocket(4242)).getConnections();
+		String mode = "platform";
+		int threads = Runtime.getRuntime().availableProcessors(), tick = 0, interval = 0, port = 4242, relayPort = 4242;
+		int maxRooms = MAX_ROOMS;
+		String relay = null;
+		Path logFile = null;
+		SketchLog.Durability durability = SketchLog.Durability.ALWAYS;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "nio", "virtual" -> mode = args[i];
+				case "tick" -> tick = Integer.parseInt(args[++i]);
+				case "log" -> logFile = Paths.get(args[++i]);
+				case "port" -> port = Integer.parseInt(args[++i]);
+				case "rooms" -> maxRooms = Integer.parseInt(args[++i]);
+				case "relay" -> {
+					String[] where = args[++i].split(":");
+					relay = where[0];
+					if (where.length > 1) relayPort = Integer.parseInt(where[1]);
+				}
+				case "sync" -> {
+					String sync = args[++i];
+					switch (sync) {
+						case "always" -> durability = SketchLog.Durability.ALWAYS;
+						case "os" -> durability = SketchLog.Durability.OS;
+						default -> {
+							durability = SketchLog.Durability.INTERVAL;
+							interval = Integer.parseInt(sync);
+						}
+					}
+				}
+				default -> threads = Integer.parseInt(args[i]);
+			}
+		}
+		if (mode.equals("nio")) {
+			SketchNioServer nio = new SketchNioServer(port, threads, tick);
+			nio.getServer().setMaxRooms(maxRooms);
+			if (relay != null) nio.getServer().setRelay(relay, relayPort);
+			else if (logFile != null) nio.getServer().openLog(logFile, durability, interval);
+			nio.getConnections();
+		}
+		else {
+			SketchServer server = new SketchServer(new ServerSocket(port), mode.equals("virtual"));
+			server.setTick(tick);
+			server.setMaxRooms(maxRooms);
+			if (relay != null) server.setRelay(relay, relayPort);
+			else if (logFile != null) server.openLog(logFile, durability, interval);
+			server.getConnections();
+		}
 	}
 }
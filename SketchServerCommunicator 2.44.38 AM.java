@@ -1,7 +1,10 @@
 import java.io.*;
-import java.awt.*;
 import java.net.Socket;
-import java.util.*;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles communication between the server and one client, for SketchServer
@@ -10,23 +13,53 @@ import java.util.*;
  * @author Tim Pierson Dartmouth CS 10, provided for Winter 2024
  * @co-author aral cay
  */
-public class SketchServerCommunicator extends Thread {
+public class SketchServerCommunicator extends Thread implements SketchClient {
+	private static final int OUTBOX_CAPACITY = 4096;	// messages a client may fall behind by before it is dropped
+
 	private Socket sock;					// to talk with client
-	private BufferedReader in;				// from client
-	private PrintWriter out;				// to client
+	private InputStream in;					// from client
+	private OutputStream out;				// to client
 	private SketchServer server;			// handling communication for
+	private SketchRoom room;				// where its messages go, chosen by its first line or by its silence (reader thread only)
+	private BlockingQueue<Object> outbox;	// encoded messages (ByteBuffer) and snapshots (SnapshotStream) waiting for the writer
+	private Thread writer;					// drains the outbox into out
+	private volatile boolean closed = false;
+	private boolean binary = false;			// client is sent frames (sequencer thread only)
+	private long lastWrite;					// when the writer last wrote (writer thread only)
 
 	public SketchServerCommunicator(Socket sock, SketchServer server) {
 		this.sock = sock;
 		this.server = server;
+		outbox = new ArrayBlockingQueue<Object>(OUTBOX_CAPACITY);
 	}
 
 	/**
-	 * Sends a message to the client
-	 * @param msg
+	 * Queues a message for the client and returns right away; a client too slow to keep up
+	 * with its outbox is disconnected rather than allowed to hold up everyone else
+	 * @param line encoded message, possibly shared with other clients
 	 */
-	public void send(String msg) {
-		out.println(msg);
+	public void send(ByteBuffer line) {
+		queue(line.duplicate());
+	}
+
+	public void send(SnapshotStream snapshot) {
+		queue(snapshot);
+	}
+
+	private void queue(Object item) {
+		if (closed) return;
+		if (!outbox.offer(item)) {
+			System.err.println("client fell too far behind, disconnecting");
+			close();
+		}
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public void useBinary() {
+		binary = true;
 	}
 
 	/**
@@ -37,171 +70,128 @@ public class SketchServerCommunicator extends Thread {
 			System.out.println("someone connected");
 
 			// Communication channel
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			out = new PrintWriter(sock.getOutputStream(), true);
+			in = new BufferedInputStream(sock.getInputStream());
+			out = sock.getOutputStream();
+
+			// The writer runs on the same kind of thread (virtual or platform) as this reader
+			writer = Thread.currentThread().isVirtual() ? Thread.ofVirtual().unstarted(this::writeMessages)
+					: new Thread(this::writeMessages);
+			writer.setDaemon(true);
+			writer.start();
 
-			// Tell the client the current state of the world
+			// Tell the client the current state of the world (the sequencer sends it, in order);
+			// a client that says how it is joining (sync/resume) does so straight away, one that says nothing just joins
 			// TODO: YOUR CODE HERE
-			send(server.getSketch().toString());
+			sock.setSoTimeout(SketchServer.JOIN_GRACE);
+			try {
+				in.mark(1);
+				in.read();
+				in.reset();
+			}
+			catch (SocketTimeoutException e) {
+				room = server.getRoom();
+				room.join(this);
+			}
+			sock.setSoTimeout(0);
 
 			// Keep getting and handling messages from the client
 			// TODO: YOUR CODE HERE
 
-			String message;
-			while ((message = in.readLine()) != null) {
-				System.out.println("message received: "+message);
-
-				// handles the client message
-				handleClientMessage(message);
+			// lines, until the client asks to switch to binary frames; one buffer, reused for every message
+			ByteBuffer message = ByteBuffer.allocate(256);
+			boolean frames = false;
+			while (!frames && (message = SketchBinaryProtocol.readLine(in, message)) != null) {
+				// handles the client message, in the room its first line picked
+				if (room == null && (room = server.roomFor(message)) == null) {
+					System.err.println("no more rooms, turning a client away");
+					break;
+				}
+				frames = room.publishLine(this, message) == SketchCommand.Op.BINARY;
+			}
+			while (frames && (message = SketchBinaryProtocol.readFrame(in, message)) != null) {
+				room.publishFrame(this, message);
 			}
-
-			// Clean up -- note that also remove self from server's list so it doesn't broadcast here
-			server.removeCommunicator(this);
-			out.close();
-			in.close();
-			sock.close();
 		}
 		catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-
-	/**
-	 * takes a message from a client and handles it
-	 */
-	synchronized public void handleClientMessage(String msg){
-		//if there is no message error
-		if (msg == null){
-			System.err.println("Error");
+			if (!closed) e.printStackTrace();
 		}
-		//if movingParts.length is smaller than two invalid message
-		String[] movingParts = msg.split(" ");
-
-		if (movingParts.length < 2){
-			System.err.println("Invalid msg");
-			return;
-		}
-
-		//switch cases suggested by Java
-		switch (movingParts[0]) {
-			case "add" -> handleShapeAddMessage(msg);
-			case "move" -> handleShapeMoveMessage(msg);
-			case "recolor" -> handleShapeRecolorMessage(msg);
-			case "delete" -> handleShapeDeleteMessage(msg);
+		finally {
+			// Clean up -- note that also remove self from server's list so it doesn't broadcast here
+			if (room != null) room.leave(this);
+			close();
 		}
 	}
 
 	/**
-	 * interprets the request of the client and handles shape message
+	 * Writer loop: copies the already-encoded messages, in order, into one buffer and writes it
+	 * whenever it fills or the outbox runs dry, so a burst of broadcasts goes out together.
+	 * In tick mode a write also waits until a tick after the last one, gathering whatever comes in meanwhile.
 	 */
-	synchronized public void handleShapeAddMessage(String msg){
-		//if length is less than seven returns
-		String[] movingParts = msg.split(" ");
-		if (movingParts.length < 7){
-			return;
-		}
-		//switch cases suggested by Java
-		Shape newShape = switch (movingParts[1]) {
-			case "ellipse" -> new Ellipse(Integer.parseInt(movingParts[2]), Integer.parseInt(movingParts[3]),
-					Integer.parseInt(movingParts[4]), Integer.parseInt(movingParts[5]), new Color(Integer.parseInt(movingParts[6])));
-			case "rectangle" -> new Rectangle(Integer.parseInt(movingParts[2]), Integer.parseInt(movingParts[3]),
-					Integer.parseInt(movingParts[4]), Integer.parseInt(movingParts[5]), new Color(Integer.parseInt(movingParts[6])));
-			case "segment" -> new Segment(Integer.parseInt(movingParts[2]), Integer.parseInt(movingParts[3]),
-					Integer.parseInt(movingParts[4]), Integer.parseInt(movingParts[5]), new Color(Integer.parseInt(movingParts[6])));
-			default -> null;
-		};
-
-		//if new shape is not null
-		if (newShape != null){
-			//new shape id is changed to
-			setNewShapeID(newShape);
-
-			//add the new shape and write it on console
-			server.getSketch().addShape(newShape);
-
-			server.broadcast("add " + newShape.toString());
+	private void writeMessages() {
+		byte[] batch = new byte[64 * 1024];
+		int n = 0;
+		long tick = TimeUnit.MILLISECONDS.toNanos(server.getTick());
+		lastWrite = System.nanoTime() - tick;
+		try {
+			while (!closed) {
+				Object item = outbox.take();
+				if (n == 0 && tick > 0) {
+					// the start of a write: at once after a quiet tick, otherwise held to the next tick
+					long wait = lastWrite + tick - System.nanoTime();
+					if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				if (item instanceof SnapshotStream snapshot) {
+					for (ByteBuffer chunk = snapshot.next(); chunk != null; chunk = snapshot.next()) {
+						n = copy(chunk, batch, n);
+					}
+				}
+				else {
+					n = copy((ByteBuffer) item, batch, n);
+				}
+				if (n > 0 && outbox.isEmpty()) {
+					out.write(batch, 0, n);
+					n = 0;
+					lastWrite = System.nanoTime();
+				}
+			}
 		}
-	}
-
-	/**
-	 * Handles the shape move function
-	 */
-	synchronized public void handleShapeMoveMessage(String msg){
-
-		String[] movingParts = msg.split(" ");
-
-		//if the length of movingParts is less than 4 return
-		if (movingParts.length < 4){
-
-			return;
-
+		catch (InterruptedException e) {
+			// closed
 		}
-
-		//for each shape in shape list
-		for (Shape shape: server.getSketch().getShapeList()){
-			//if the shape id is equal to the movingParts[1]
-			if (shape.getID().equals(movingParts[1])){
-				//then move the shapes
-				shape.moveBy(Integer.parseInt(movingParts[2]), Integer.parseInt(movingParts[3]));
-				server.broadcast(msg);
-			}
+		catch (IOException e) {
+			close();
 		}
 	}
 
 	/**
-	 * handles the recolor function of the editor
+	 * Adds the bytes to the batch (which holds n already), writing it each time it fills; returns the new n
 	 */
-	synchronized public void handleShapeRecolorMessage(String msg){
-		String[] movingParts = msg.split(" ");
-		//if the length of movingParts is less than three return
-		if (movingParts.length < 3){
-
-			return;
-		}
-
-		//for each shape in shape list
-		for (Shape shape: server.getSketch().getShapeList()){
-			//if the id of the shape equals movingParts[1]
-			if (shape.getID().equals(movingParts[1])){
-				//set the color of the shape tp the new one
-				shape.setColor(new Color(Integer.parseInt(movingParts[2])));
-				server.broadcast(msg);
+	private int copy(ByteBuffer bytes, byte[] batch, int n) throws IOException {
+		while (bytes.hasRemaining()) {
+			int chunk = Math.min(bytes.remaining(), batch.length - n);
+			bytes.get(batch, n, chunk);
+			n += chunk;
+			if (n == batch.length) {
+				out.write(batch, 0, n);
+				n = 0;
+				lastWrite = System.nanoTime();
 			}
 		}
-
+		return n;
 	}
 
 	/**
-	 * this method handle the deleting function of the editor
+	 * Stops the writer and closes the socket, which also ends the reader
 	 */
-	synchronized public void handleShapeDeleteMessage(String msg){
-		String[] movingParts = msg.split(" ");
-		//if the length of movingParts is less than two return
-		if (movingParts.length < 2){
-			return;
+	public void close() {
+		if (closed) return;
+		closed = true;
+		if (writer != null) writer.interrupt();
+		try {
+			sock.close();
 		}
-
-		//iterator define
-		Iterator<Shape> iter = server.getSketch().getShapeList().iterator();
-
-		//while there is another element
-		while (iter.hasNext()){
-			//shape equals iter.next
-			Shape shape = iter.next();
-			//when the element is finally found delete it
-			if (shape.getID().equals(movingParts[1])){
-				iter.remove();
-				server.broadcast(msg);
-			}
+		catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
-
-	/**
-	 * sets the new shape id
-	 */
-	synchronized public void setNewShapeID(Shape shape){
-		//set the shape of the id to id
-		String id = UUID.randomUUID().toString();
-		shape.setID(id);
-	}
 }
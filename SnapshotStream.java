@@ -0,0 +1,86 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * A sketch snapshot on its way to one client: "sketch begin <count> <seq>" (seq: the number of the last operation
+ * it includes, from which the client counts the broadcasts that follow), an add message per shape (bottom to top;
+ * a freehand stroke is its stroke, append and finish messages instead), then "sketch end", encoded a bounded
+ * chunk at a time by whichever thread writes to the client. Since the snapshot never changes, the sequencer only
+ * has to take it and queue this in the client's outbox, in order; the whole sketch is never encoded, or held,
+ * in one piece.
+ *
+ * @co-author aral cay
+ */
+public class SnapshotStream {
+	private static final int CHUNK = 32 * 1024;		// bytes per chunk (more only for a single message bigger than this)
+
+	private final Sketch.Snapshot snapshot;
+	private final Iterator<Shape> shapes;
+	private Iterator<String> stroke;		// the rest of the messages for a stroke, if one is part sent
+	private final boolean binary;			// SketchBinaryProtocol frames rather than text lines
+	private final long seq;					// the operation the snapshot is as of
+	private ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+	private ByteBuffer pending;				// message that didn't fit in the last chunk
+	private boolean begun = false, ended = false;
+
+	public SnapshotStream(Sketch.Snapshot snapshot, long seq, boolean binary) {
+		this.snapshot = snapshot;
+		this.shapes = snapshot.iterator();
+		this.seq = seq;
+		this.binary = binary;
+	}
+
+	/**
+	 * The next chunk of the stream, or null when it is all done; the buffer is reused, so it must be
+	 * written out (or copied) before the next call
+	 */
+	public ByteBuffer next() {
+		chunk.clear();
+		while (true) {
+			ByteBuffer msg = pending != null ? pending : nextMessage();
+			pending = null;
+			if (msg == null) break;
+			if (msg.remaining() > chunk.remaining()) {
+				if (chunk.position() > 0) {
+					pending = msg;
+					break;
+				}
+				chunk = ByteBuffer.allocate(msg.remaining());
+			}
+			chunk.put(msg);
+		}
+		if (chunk.position() == 0) return null;
+		ByteBuffer full = chunk.flip();
+		if (full.capacity() > CHUNK) chunk = ByteBuffer.allocate(CHUNK);	// back to the usual size for the next one
+		return full;
+	}
+
+	private ByteBuffer nextMessage() {
+		String msg;
+		if (!begun) {
+			begun = true;
+			msg = "sketch begin " + snapshot.size() + " " + seq;
+		}
+		else if (stroke != null && stroke.hasNext()) {
+			msg = stroke.next();
+		}
+		else if (shapes.hasNext()) {
+			Shape shape = shapes.next();
+			if (shape instanceof Polyline p) {
+				stroke = p.messages().iterator();
+				msg = stroke.next();
+			}
+			else {
+				msg = "add " + shape;
+			}
+		}
+		else if (!ended) {
+			ended = true;
+			msg = "sketch end";
+		}
+		else {
+			return null;
+		}
+		return binary ? SketchBinaryProtocol.encode(msg) : SketchClient.encode(msg);
+	}
+}
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+
+/**
+ * Thins out a freehand stroke's points as it is drawn, before they are sent: the mouse gives a point on every
+ * drag event, and most of them lie on (or within a pixel of) the straight line between their neighbours, costing
+ * memory, contains() tests, drawing and bytes on every client for nothing.
+ *
+ * Two stages, both within the same tolerance (in pixels). A point no further than that from the last one kept is
+ * dropped outright (radial distance). Otherwise it is held back, and the last point held is kept only once the
+ * straight line from the last kept point to the new one would pass further than the tolerance from one of the
+ * points held -- the Ramer-Douglas-Peucker test, run over the points since the last kept one as each arrives,
+ * since the points before it have already been sent and can't be taken back. The pen's last position is always
+ * kept when the stroke is finished, so it ends where it was drawn to.
+ *
+ * The kept points come out as offsets from the one before, as an append carries them.
+ *
+ * @co-author aral cay
+ */
+public class StrokeSimplifier {
+	private static final int WINDOW = 64;		// most points held back at once (bounds the work per point)
+
+	private final double tolerance;				// how far a dropped point may be from the line drawn instead
+	private int keptX, keptY;					// the last point kept
+	private int[] xs = new int[WINDOW], ys = new int[WINDOW];	// the points since it, not yet kept or dropped
+	private int held = 0;
+	private int lastX, lastY;					// where the pen is (the last point given)
+	private int[] deltas = new int[32];			// dx, dy of each point kept and not yet taken
+	private int count = 0;
+	private int seen = 1, kept = 1;				// points given and kept, the first included
+
+	/**
+	 * Starts a stroke at its first point (which is always kept, and is not among the deltas)
+	 * @param tolerance in pixels; 0 still drops repeated points and ones exactly in line with their neighbours
+	 */
+	public StrokeSimplifier(int x, int y, double tolerance) {
+		this.tolerance = tolerance;
+		keptX = lastX = x;
+		keptY = lastY = y;
+	}
+
+	/**
+	 * The pen has moved to (x,y)
+	 */
+	public void add(int x, int y) {
+		seen++;
+		if (x == lastX && y == lastY) return;
+		lastX = x;
+		lastY = y;
+		int dx = x - keptX, dy = y - keptY;
+		if (dx*dx + dy*dy <= tolerance*tolerance) return;	// so close to the last kept point it is on any line from there
+		if (held == WINDOW || !inLine(x, y)) {
+			// the line can't stretch to here, so it ends at the last point held
+			keep(xs[held-1], ys[held-1]);
+			held = 0;
+		}
+		xs[held] = x;
+		ys[held] = y;
+		held++;
+	}
+
+	/**
+	 * The stroke is done: keeps where the pen stopped
+	 */
+	public void finish() {
+		if (lastX != keptX || lastY != keptY) keep(lastX, lastY);
+		held = 0;
+	}
+
+	/**
+	 * Appends " dx dy" for each point kept since the last call, as an append message carries them
+	 * @return whether there were any
+	 */
+	public boolean takeDeltas(StringBuilder out) {
+		for (int i = 0; i < 2*count; i++) out.append(' ').append(deltas[i]);
+		boolean any = count > 0;
+		count = 0;
+		return any;
+	}
+
+	//points given so far (including the first)
+	public int getSeen() {
+		return seen;
+	}
+
+	//points kept so far (including the first)
+	public int getKept() {
+		return kept;
+	}
+
+	// whether every point held is within the tolerance of the line from the last kept point to (x,y)
+	private boolean inLine(int x, int y) {
+		for (int i = 0; i < held; i++) {
+			if (Segment.pointToSegmentDistance(xs[i], ys[i], keptX, keptY, x, y) > tolerance) return false;
+		}
+		return true;
+	}
+
+	private void keep(int x, int y) {
+		if (2*count + 2 > deltas.length) deltas = Arrays.copyOf(deltas, 2*deltas.length);
+		deltas[2*count] = x - keptX;
+		deltas[2*count+1] = y - keptY;
+		count++;
+		kept++;
+		keptX = x;
+		keptY = y;
+	}
+}